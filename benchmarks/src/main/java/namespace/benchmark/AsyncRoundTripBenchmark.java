@@ -0,0 +1,72 @@
+package namespace.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import namespace.model.Message;
+import namespace.model.MessageQueue;
+import namespace.service.QueueService;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Round trips (push, pull, delete) chained with the asynchronous API, inFlight of them at once from a single thread.
+ * An operation is the whole batch of round trips, so the throughput in messages is inFlight times the one reported.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AsyncRoundTripBenchmark {
+    @Param({ "IN_MEMORY", "FILE" })
+    public QueueBackend backend;
+
+    @Param({ "1", "1000" })
+    public int inFlight;
+
+    private QueueService service;
+    private MessageQueue queue;
+    private String body;
+    private Function<Void, CompletionStage<Message>> pulling;
+    private Function<Message, CompletionStage<Void>> deleting;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        service = backend.createService();
+        queue = service.getQueue("asyncRoundTripBenchmark" + System.nanoTime());
+        queue.setVisibilityTimeout(60);
+        body = QueueBackend.body(16);
+        pulling = new Function<Void, CompletionStage<Message>>() {
+            @Override
+            public CompletionStage<Message> apply(Void result) {
+                return queue.pullAsync(1, TimeUnit.SECONDS);
+            }
+        };
+        deleting = new Function<Message, CompletionStage<Void>>() {
+            @Override
+            public CompletionStage<Void> apply(Message message) {
+                if (message == null)
+                    return CompletableFuture.completedFuture(null);
+                return queue.deleteAsync(message.getHandle());
+            }
+        };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        service.shutdown();
+    }
+
+    @Benchmark
+    public void roundTrips() {
+        CompletableFuture<?>[] roundTrips = new CompletableFuture<?>[inFlight];
+        for (int i = 0; i < inFlight; ++i)
+            roundTrips[i] = queue.pushAsync(new Message(body)).thenCompose(pulling).thenCompose(deleting);
+        CompletableFuture.allOf(roundTrips).join();
+    }
+}
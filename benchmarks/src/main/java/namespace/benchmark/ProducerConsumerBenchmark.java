@@ -0,0 +1,63 @@
+package namespace.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import namespace.model.Message;
+import namespace.model.MessageQueue;
+import namespace.service.QueueService;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Producers pushing and consumers pulling then deleting, concurrently on the same queue.
+ * The default is one producer and one consumer, scale them with -tg <producers>,<consumers>.
+ * The consumers wait at most a millisecond for a message, so an empty queue does not stall the run.
+ */
+
+@State(Scope.Group)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProducerConsumerBenchmark {
+    @Param({ "IN_MEMORY", "IN_MEMORY_SHARDED", "RING_BUFFER", "SHARED_MEMORY", "FILE" })
+    public QueueBackend backend;
+
+    @Param({ "1024" })
+    public int messageSize;
+
+    private QueueService service;
+    private MessageQueue queue;
+    private String body;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        service = backend.createService();
+        queue = service.getQueue("producerConsumerBenchmark" + System.nanoTime());
+        queue.setVisibilityTimeout(60);
+        body = QueueBackend.body(messageSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        service.shutdown();
+    }
+
+    @Benchmark
+    @Group("producerConsumer")
+    @GroupThreads(1)
+    public void push() {
+        queue.push(new Message(body));
+    }
+
+    @Benchmark
+    @Group("producerConsumer")
+    @GroupThreads(1)
+    public Message pull() {
+        Message message = queue.pull(1, TimeUnit.MILLISECONDS);
+        if (message != null)
+            queue.delete(message.getHandle());
+        return message;
+    }
+}
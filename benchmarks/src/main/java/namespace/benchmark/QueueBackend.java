@@ -0,0 +1,99 @@
+package namespace.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.sqs.AmazonSQSAsyncClient;
+import namespace.model.WaitStrategy;
+import namespace.service.FileQueueService;
+import namespace.service.InMemoryQueueService;
+import namespace.service.LocalSqsServer;
+import namespace.service.OffHeapQueueService;
+import namespace.service.QueueService;
+import namespace.service.RingBufferQueueService;
+import namespace.service.SharedMemoryQueueService;
+import namespace.service.SqsQueueService;
+import namespace.service.TieredQueueService;
+
+/*
+ * The QueueService implementations the benchmarks can run against.
+ * SQS runs against an embedded LocalSqsServer, unless the "sqs.endpoint" system property gives the URL of another endpoint.
+ * The "sqs.latency" system property adds that many milliseconds to each response of the embedded server.
+ */
+
+public enum QueueBackend {
+    IN_MEMORY {
+        @Override
+        public QueueService createService() {
+            return new InMemoryQueueService();
+        }
+    },
+    IN_MEMORY_SHARDED {
+        @Override
+        public QueueService createService() {
+            return new InMemoryQueueService(Runtime.getRuntime().availableProcessors());
+        }
+    },
+    OFF_HEAP {
+        @Override
+        public QueueService createService() {
+            return new OffHeapQueueService(1024 * 1024 * 1024);
+        }
+    },
+    RING_BUFFER {
+        @Override
+        public QueueService createService() {
+            return new RingBufferQueueService(1024 * 1024, WaitStrategy.YIELD);
+        }
+    },
+    SHARED_MEMORY {
+        @Override
+        public QueueService createService() {
+            File dir = new File("/dev/shm").isDirectory() ? new File("/dev/shm") : new File(System.getProperty("java.io.tmpdir"));
+            return new SharedMemoryQueueService(dir.getPath() + File.separator, 64 * 1024, 2048, WaitStrategy.YIELD);
+        }
+    },
+    FILE {
+        @Override
+        public QueueService createService() throws IOException {
+            File dir = Files.createTempDirectory("queue-benchmark").toFile();
+            dir.deleteOnExit();
+            return new FileQueueService(dir.getPath() + File.separator);
+        }
+    },
+    TIERED {
+        @Override
+        public QueueService createService() throws IOException {
+            File dir = Files.createTempDirectory("queue-benchmark").toFile();
+            dir.deleteOnExit();
+            return new TieredQueueService(dir.getPath() + File.separator, 64 * 1024 * 1024);
+        }
+    },
+    SQS {
+        @Override
+        public QueueService createService() {
+            AmazonSQSAsyncClient sqs = new AmazonSQSAsyncClient(new BasicAWSCredentials("benchmark", "benchmark"));
+            String endpoint = System.getProperty("sqs.endpoint");
+            if (endpoint == null) {
+                // Left running until the fork exits, like the other backends' threads
+                LocalSqsServer server = new LocalSqsServer(0);
+                server.setLatency(Long.getLong("sqs.latency", 0), TimeUnit.MILLISECONDS);
+                endpoint = server.getEndpoint();
+            }
+            sqs.setEndpoint(endpoint);
+            return new SqsQueueService(sqs);
+        }
+    };
+
+    public abstract QueueService createService() throws IOException;
+
+    public static String body(int size) {
+        StringBuilder builder = new StringBuilder(size);
+        for (int i = 0; i < size; ++i)
+            builder.append((char) ('a' + i % 26));
+        return builder.toString();
+    }
+}
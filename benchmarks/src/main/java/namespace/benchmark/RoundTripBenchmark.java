@@ -0,0 +1,60 @@
+package namespace.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import namespace.model.Message;
+import namespace.model.MessageQueue;
+import namespace.service.QueueService;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * A push, pull and delete of one message, swept over message sizes and queue depths.
+ * The queue is filled up to queueDepth beforehand, and each round trip leaves it at that depth.
+ * Run with -t to scale the number of threads doing round trips.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+    @Param({ "IN_MEMORY", "OFF_HEAP", "FILE", "TIERED" })
+    public QueueBackend backend;
+
+    @Param({ "16", "1024", "65536" })
+    public int messageSize;
+
+    @Param({ "0", "10000" })
+    public int queueDepth;
+
+    private QueueService service;
+    private MessageQueue queue;
+    private String body;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        service = backend.createService();
+        queue = service.getQueue("roundTripBenchmark" + System.nanoTime());
+        queue.setVisibilityTimeout(60);
+        body = QueueBackend.body(messageSize);
+        for (int i = 0; i < queueDepth; ++i)
+            queue.push(new Message(body));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        service.shutdown();
+    }
+
+    @Benchmark
+    public Message roundTrip() {
+        queue.push(new Message(body));
+        Message message = queue.pull();
+        if (message != null)
+            queue.delete(message.getHandle());
+        return message;
+    }
+}
@@ -0,0 +1,56 @@
+package namespace.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import namespace.model.Message;
+import namespace.model.MessageQueue;
+import namespace.service.QueueService;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * RoundTripBenchmark against the SqsQueueService, pointed at the embedded SQS stand-in by default (see QueueBackend).
+ * Kept apart with smaller sweeps, as each operation is a network round trip.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class SqsRoundTripBenchmark {
+    @Param({ "16", "65536" })
+    public int messageSize;
+
+    @Param({ "0", "100" })
+    public int queueDepth;
+
+    private QueueService service;
+    private MessageQueue queue;
+    private String body;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        service = QueueBackend.SQS.createService();
+        queue = service.getQueue("sqsRoundTripBenchmark" + System.nanoTime());
+        queue.setVisibilityTimeout(60);
+        body = QueueBackend.body(messageSize);
+        for (int i = 0; i < queueDepth; ++i)
+            queue.push(new Message(body));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        service.shutdown();
+    }
+
+    @Benchmark
+    public Message roundTrip() {
+        queue.push(new Message(body));
+        Message message = queue.pull();
+        if (message != null)
+            queue.delete(message.getHandle());
+        return message;
+    }
+}
@@ -0,0 +1,477 @@
+package namespace.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sqs.AmazonSQSAsyncClient;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+
+/*
+ * Client-side buffered version of the SqsQueue.
+ * Pushes and deletes are collected for up to maxBatchOpenMs (or until 10 of them are collected),
+ * then sent as one batch by the executor.
+ * Once a consumer pulled, a background thread prefetches messages with long polling, at most prefetchCount of them.
+ * A prefetched message is dropped, and redelivered by SQS, when it is not pulled early enough to be processed
+ * before its visibility timeout. Hence there is no prefetching for visibility timeouts under minPrefetchVisibility.
+ *
+ * Durability: push() and delete() return before anything is sent to SQS.
+ * A pushed message is lost if the process dies before its batch is sent, a deleted one is redelivered.
+ * flush() waits until all the pending pushes and deletes are sent, and throws if any of them failed.
+ * The metrics count a delete once it is buffered, a push once it is sent.
+ * pushAsync() and deleteAsync() are buffered the same way, their future being completed once their batch is sent.
+ * Delayed pushes are not buffered: they are sent right away, on their own.
+ * A pull that finds nothing prefetched first flushes the pending pushes, so that a process reads its own messages.
+ * While prefetching, the prefetcher is the only one to long poll: pull() with a timeout waits for what it prefetches,
+ * and pullAsync() registers its future, which the prefetcher completes with one of the next messages it receives.
+ * A receive of the prefetcher in flight when pushes were sent may get them, instead of the single round trip of pull(),
+ * so an empty round trip waits for that receive to come back (up to a second) before returning nothing.
+ * A receive of the prefetcher that fails fails the async pulls waiting for it, or else the next pull, which throws it,
+ * and the prefetcher tries again a second later.
+ */
+
+public class BufferedSqsQueue extends SqsQueue {
+    private static final int minPrefetchVisibility = 5;
+    // Time left to the consumer to process a prefetched message, before its visibility timeout
+    private static final long processingMargin = TimeUnit.SECONDS.toNanos(1);
+    private static final long maxPrefetchWait = TimeUnit.SECONDS.toNanos(1);
+    private ScheduledExecutorService executor;
+    private long maxBatchOpenMs;
+    private int prefetchCount;
+    private volatile int visibilityTimeout;
+    private Batcher<Message> sends = new Batcher<Message>() {
+        @Override
+        protected void send(List<Message> batch) {
+            BufferedSqsQueue.super.pushBatch(batch);
+            lastSendTime = System.nanoTime();
+        }
+    };
+    private Batcher<String> deletes = new Batcher<String>() {
+        @Override
+        protected void send(List<String> batch) {
+            sendDeletes(batch, false);
+        }
+    };
+    private LinkedBlockingDeque<Prefetched> prefetched = new LinkedBlockingDeque<>();
+    private Semaphore freeSlots;
+    private Thread prefetchingThread;
+    private volatile long lastSendTime = System.nanoTime();
+    // Waiting for the prefetcher, completed and removed with the lock of the deque held
+    private Deque<CompletableFuture<Message>> asyncPulls = new ConcurrentLinkedDeque<>();
+    // Guards the state of the receive of the prefetcher, and is notified when it comes back
+    private Object prefetchLock = new Object();
+    private boolean receiving = false;
+    private long receiveStartTime;
+    private volatile boolean closed = false;
+    // The last failure of the prefetcher, until a pull reports it
+    private AtomicReference<AmazonClientException> prefetchFailure = new AtomicReference<>();
+
+    private static class Prefetched {
+        private Message message;
+        private long deadline;
+
+        public Prefetched(Message message, long deadline) {
+            this.message = message;
+            this.deadline = deadline;
+        }
+    }
+
+    // Collects items until a batch is full or maxBatchOpenMs elapsed, then sends the batch from the executor
+    private abstract class Batcher<T> {
+        private List<T> pending = new ArrayList<>();
+        private List<CompletableFuture<Void>> pendingFutures = new ArrayList<>();
+        // One future per batch being sent
+        private List<CompletableFuture<Void>> sending = new ArrayList<>();
+        private ScheduledFuture<?> timer;
+        private int outstanding = 0;
+        private RuntimeException failure;
+
+        // The future is completed once the batch of the item is sent
+        public synchronized CompletableFuture<Void> add(T item) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            pending.add(item);
+            pendingFutures.add(future);
+            if (pending.size() >= maxBatchSize)
+                submit();
+            else if (timer == null) {
+                timer = executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (Batcher.this) {
+                            timer = null;
+                            submit();
+                        }
+                    }
+                }, maxBatchOpenMs, TimeUnit.MILLISECONDS);
+            }
+            return future;
+        }
+
+        private void submit() {
+            if (timer != null) {
+                timer.cancel(false);
+                timer = null;
+            }
+            if (pending.isEmpty())
+                return;
+            final List<T> batch = pending;
+            final List<CompletableFuture<Void>> futures = pendingFutures;
+            final CompletableFuture<Void> sent = new CompletableFuture<>();
+            pending = new ArrayList<>();
+            pendingFutures = new ArrayList<>();
+            sending.add(sent);
+            ++outstanding;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    RuntimeException error = null;
+                    try {
+                        send(batch);
+                    }
+                    catch (RuntimeException e) {
+                        error = e;
+                    }
+                    synchronized (Batcher.this) {
+                        if (error != null && failure == null)
+                            failure = error;
+                        --outstanding;
+                        sending.remove(sent);
+                        Batcher.this.notifyAll();
+                    }
+                    for (CompletableFuture<Void> future : futures) {
+                        if (error == null)
+                            future.complete(null);
+                        else
+                            future.completeExceptionally(error);
+                    }
+                    sent.complete(null);
+                }
+            });
+        }
+
+        protected abstract void send(List<T> batch);
+
+        // Sends the pending items, and completes once the batches sent so far are done, whether they failed or not
+        public synchronized CompletableFuture<Void> flushAsync() {
+            submit();
+            return CompletableFuture.allOf(sending.toArray(new CompletableFuture<?>[sending.size()]));
+        }
+
+        public synchronized void flush() {
+            submit();
+            boolean interrupted = false;
+            while (outstanding > 0) {
+                try { wait(); }
+                catch (InterruptedException e) { interrupted = true; }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (failure != null) {
+                RuntimeException error = failure;
+                failure = null;
+                throw error;
+            }
+        }
+    }
+
+    private class PrefetchingRunnable implements Runnable {
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    if (visibilityTimeout < minPrefetchVisibility) {
+                        // Wait for a longer visibility timeout, without spinning
+                        Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+                        continue;
+                    }
+                    freeSlots.acquire();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                int count = 1 + Math.min(maxBatchSize - 1, freeSlots.availablePermits());
+                if (!freeSlots.tryAcquire(count - 1))
+                    count = 1;
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(visibilityTimeout) - processingMargin;
+                List<Message> messages = Collections.emptyList();
+                synchronized (prefetchLock) {
+                    receiving = true;
+                    receiveStartTime = System.nanoTime();
+                }
+                try {
+                    messages = receive(count, maxWaitTimeSeconds);
+                }
+                catch (AmazonClientException e) {
+                    if (closed)
+                        return;
+                    failPulls(e);
+                    try { Thread.sleep(TimeUnit.SECONDS.toMillis(1)); }
+                    catch (InterruptedException ie) { return; }
+                }
+                finally {
+                    freeSlots.release(count - messages.size());
+                    for (Message message : messages)
+                        prefetched.addLast(new Prefetched(message, deadline));
+                    synchronized (prefetchLock) {
+                        receiving = false;
+                        prefetchLock.notifyAll();
+                    }
+                }
+                handOver();
+            }
+        }
+    }
+
+    public BufferedSqsQueue(String queueId, AmazonSQSAsyncClient sqs, ScheduledExecutorService executor,
+                            long maxBatchOpenMs, int prefetchCount) {
+        super(queueId, sqs);
+        this.executor = executor;
+        this.maxBatchOpenMs = maxBatchOpenMs;
+        this.prefetchCount = prefetchCount;
+        freeSlots = new Semaphore(prefetchCount);
+        String timeout = sqs.getQueueAttributes(new GetQueueAttributesRequest(queueUrl)
+                .withAttributeNames("VisibilityTimeout")).getAttributes().get("VisibilityTimeout");
+        visibilityTimeout = timeout == null ? 30 : Integer.parseInt(timeout);
+    }
+
+    @Override
+    public void setVisibilityTimeout(int visibilityTimeout) {
+        super.setVisibilityTimeout(visibilityTimeout);
+        this.visibilityTimeout = visibilityTimeout;
+    }
+
+    @Override
+    public void push(Message message) {
+        sends.add(message);
+    }
+
+    @Override
+    public void pushBatch(List<Message> messages) {
+        for (Message message : messages)
+            sends.add(message);
+    }
+
+    private synchronized void startPrefetching() {
+        if (prefetchingThread == null && prefetchCount > 0 && !closed) {
+            prefetchingThread = new Thread(new PrefetchingRunnable(), "sqs-prefetch-" + queueUrl);
+            prefetchingThread.setDaemon(true);
+            prefetchingThread.start();
+        }
+    }
+
+    private boolean prefetching() {
+        return prefetchCount > 0 && visibilityTimeout >= minPrefetchVisibility;
+    }
+
+    // Null if nothing was prefetched, or if all of it is too close to its visibility timeout
+    private Message pollPrefetched() {
+        Prefetched entry;
+        while ((entry = prefetched.pollFirst()) != null) {
+            freeSlots.release();
+            if (entry.deadline - System.nanoTime() > 0)
+                return entry.message;
+        }
+        return null;
+    }
+
+    // Completes the waiting async pulls with the prefetched messages
+    private void handOver() {
+        synchronized (asyncPulls) {
+            Message message;
+            while (!asyncPulls.isEmpty() && (message = pollPrefetched()) != null)
+                asyncPulls.pollFirst().complete(message);
+        }
+    }
+
+    // The async pulls waiting for the prefetcher fail with the error, or else the next pull
+    private void failPulls(AmazonClientException error) {
+        synchronized (asyncPulls) {
+            if (asyncPulls.isEmpty()) {
+                prefetchFailure.set(error);
+                return;
+            }
+            CompletableFuture<Message> future;
+            while ((future = asyncPulls.pollFirst()) != null)
+                future.completeExceptionally(error);
+        }
+    }
+
+    private void throwPrefetchFailure() {
+        AmazonClientException error = prefetchFailure.getAndSet(null);
+        if (error != null)
+            throw error;
+    }
+
+    // Waits for the receive of the prefetcher if it was in flight when pushes were last sent
+    private void awaitPrefetch() {
+        long deadline = System.nanoTime() + maxPrefetchWait;
+        boolean interrupted = false;
+        synchronized (prefetchLock) {
+            long remaining;
+            while (receiving && receiveStartTime - lastSendTime < 0 && (remaining = deadline - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(prefetchLock, remaining);
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                    break;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    @Override
+    public Message pull() {
+        List<Message> messages = pull(1);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    @Override
+    public List<Message> pull(int max) {
+        startPrefetching();
+        throwPrefetchFailure();
+        List<Message> messages = new ArrayList<>(Math.min(max, maxBatchSize));
+        Message message;
+        while (messages.size() < max && (message = pollPrefetched()) != null)
+            messages.add(message);
+        if (!messages.isEmpty())
+            return messages;
+        sends.flush();
+        messages = super.pull(max);
+        if (messages.isEmpty()) {
+            awaitPrefetch();
+            while (messages.size() < max && (message = pollPrefetched()) != null)
+                messages.add(message);
+        }
+        return messages;
+    }
+
+    // Returns null if the timeout expires, or if the thread gets interrupted (its interrupt status is kept)
+    @Override
+    public Message pull(long timeout, TimeUnit unit) {
+        startPrefetching();
+        throwPrefetchFailure();
+        Message message = pollPrefetched();
+        if (message != null)
+            return message;
+        sends.flush();
+        if (!prefetching())
+            return super.pull(timeout, unit);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            Prefetched entry;
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0
+                    && (entry = prefetched.pollFirst(remaining, TimeUnit.NANOSECONDS)) != null) {
+                freeSlots.release();
+                if (entry.deadline - System.nanoTime() > 0)
+                    return entry.message;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        throwPrefetchFailure();
+        return null;
+    }
+
+    @Override
+    public void delete(String handle) {
+        deletes.add(handle);
+        getMetrics().recordDelete();
+    }
+
+    @Override
+    public CompletableFuture<Void> pushAsync(Message message) {
+        return sends.add(message);
+    }
+
+    @Override
+    public CompletableFuture<Message> pullAsync(long timeout, TimeUnit unit) {
+        startPrefetching();
+        AmazonClientException error = prefetchFailure.getAndSet(null);
+        if (error != null) {
+            CompletableFuture<Message> failed = new CompletableFuture<>();
+            failed.completeExceptionally(error);
+            return failed;
+        }
+        Message message = pollPrefetched();
+        if (message != null)
+            return CompletableFuture.completedFuture(message);
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        // The failures of the pending pushes are reported to their own futures
+        return sends.flushAsync().thenCompose(new Function<Void, CompletionStage<Message>>() {
+            @Override
+            public CompletionStage<Message> apply(Void result) {
+                if (prefetching())
+                    return awaitPrefetchAsync(deadline);
+                return BufferedSqsQueue.super.pullAsync(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+        });
+    }
+
+    private CompletableFuture<Message> awaitPrefetchAsync(long deadline) {
+        final CompletableFuture<Message> future = new CompletableFuture<>();
+        synchronized (asyncPulls) {
+            Message message = pollPrefetched();
+            if (message != null) {
+                future.complete(message);
+                return future;
+            }
+            asyncPulls.addLast(future);
+        }
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (asyncPulls) {
+                    if (asyncPulls.remove(future))
+                        future.complete(null);
+                }
+            }
+        }, Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String handle) {
+        getMetrics().recordDelete();
+        return deletes.add(handle);
+    }
+
+    @Override
+    public void deleteBatch(Collection<String> handles) {
+        for (String handle : handles)
+            delete(handle);
+    }
+
+    public void flush() {
+        sends.flush();
+        deletes.flush();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            if (prefetchingThread != null)
+                prefetchingThread.interrupt();
+        }
+        flush();
+        super.close();
+    }
+}
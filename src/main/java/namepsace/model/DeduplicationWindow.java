@@ -0,0 +1,186 @@
+package namespace.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The deduplication IDs of the messages pushed recently: a message whose ID was pushed within the window is dropped.
+ * The IDs are kept as 64-bit hashes, with the time of their push in milliseconds since the epoch, in a fixed size
+ * open addressing table: a direct buffer for a single process, or a file mapped by all the processes sharing the window.
+ * Each entry takes 16 bytes whatever the ID, so the default table of 2^20 entries takes 16MB, and never grows.
+ * A key is probed in at most 16 slots, within a segment of the table guarded by its own monitor,
+ * or by the ProcessLock of the file for the whole batch when the table is shared.
+ * An entry older than the window is free, so the entries expire without being removed.
+ * When the 16 slots of a key are all within the window, the oldest entry is evicted: a burst of more IDs than the table holds
+ * shortens the window, and lets some duplicates through, rather than failing the pushes.
+ * Two different IDs collide with a negligible probability, about one in thirty million for a full default table.
+ */
+
+public class DeduplicationWindow {
+    public static final long defaultWindow = TimeUnit.MINUTES.toMillis(5);
+    public static final int defaultCapacity = 1 << 20;
+    private static final int entrySize = 8 + 8;
+    private static final int maxProbes = 16;
+    private static final int maxSegments = 64;
+    private ByteBuffer table;
+    private int slotMask;
+    private int segmentShift;
+    private Object[] segmentLocks;
+    private long window;
+    // Null when the table is not shared
+    private ProcessLock lock;
+
+    // The capacity is rounded up to a power of two, up to 2^26, the window is in milliseconds
+    public DeduplicationWindow(int capacity, long window) {
+        this(capacity, window, null);
+        table = ByteBuffer.allocateDirect((slotMask + 1) * entrySize);
+    }
+
+    // The processes sharing the file must use the same capacity and the same lock
+    public DeduplicationWindow(File file, ProcessLock lock, int capacity, long window) {
+        this(capacity, window, lock);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The file is extended with zeros, which are free entries
+            table = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) (slotMask + 1) * entrySize);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private DeduplicationWindow(int capacity, long window, ProcessLock lock) {
+        if (capacity < maxProbes || capacity > 1 << 26)
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        int slots = Integer.highestOneBit(capacity - 1) << 1;
+        slotMask = slots - 1;
+        int segments = Math.min(maxSegments, slots / maxProbes);
+        segmentShift = Integer.numberOfTrailingZeros(slots / segments);
+        segmentLocks = new Object[segments];
+        for (int i = 0; i < segments; ++i)
+            segmentLocks[i] = new Object();
+        this.window = window;
+        this.lock = lock;
+    }
+
+    // FNV-1a, mixed so that the low bits pick the slots evenly, 0 being the free slots
+    private static long key(String deduplicationId) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < deduplicationId.length(); ++i)
+            hash = (hash ^ deduplicationId.charAt(i)) * 0x100000001b3L;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+
+    private int slot(long key, int probe) {
+        int home = (int) key & slotMask;
+        int segmentMask = (1 << segmentShift) - 1;
+        return (home & ~segmentMask) | ((home + probe) & segmentMask);
+    }
+
+    // Must be called with the lock of the segment of the key held, records the key unless it is within the window
+    private boolean admit(long key, long now) {
+        int free = -1;
+        int oldest = -1;
+        long oldestTime = Long.MAX_VALUE;
+        for (int probe = 0; probe < maxProbes; ++probe) {
+            int slot = slot(key, probe);
+            long slotKey = table.getLong(slot * entrySize);
+            long time = table.getLong(slot * entrySize + 8);
+            boolean live = slotKey != 0 && now - time < window;
+            if (live && slotKey == key)
+                return false;
+            if (!live && free < 0)
+                free = slot;
+            // Entries are never removed, so a key is never found past a slot that was never used
+            if (slotKey == 0)
+                break;
+            if (live && time < oldestTime) {
+                oldest = slot;
+                oldestTime = time;
+            }
+        }
+        int slot = free >= 0 ? free : oldest;
+        table.putLong(slot * entrySize, key).putLong(slot * entrySize + 8, now);
+        return true;
+    }
+
+    private Object segmentLock(long key) {
+        return segmentLocks[((int) key & slotMask) >>> segmentShift];
+    }
+
+    public static boolean hasIds(List<Message> messages) {
+        for (Message message : messages) {
+            if (message.getDeduplicationId() != null)
+                return true;
+        }
+        return false;
+    }
+
+    // Returns the messages to push, the ones without a deduplication ID and the ones whose ID gets recorded now
+    public List<Message> admit(List<Message> messages, long now) {
+        if (!hasIds(messages))
+            return messages;
+        List<Message> admitted = new ArrayList<>(messages.size());
+        if (lock != null)
+            lock.lock();
+        try {
+            for (Message message : messages) {
+                if (message.getDeduplicationId() == null) {
+                    admitted.add(message);
+                    continue;
+                }
+                long key = key(message.getDeduplicationId());
+                boolean fresh;
+                synchronized (segmentLock(key)) {
+                    fresh = admit(key, now);
+                }
+                if (fresh)
+                    admitted.add(message);
+            }
+        }
+        finally {
+            if (lock != null)
+                lock.unlock();
+        }
+        return admitted;
+    }
+
+    // Forgets the IDs of the admitted messages, if nothing else was recorded in their slot since, when their push failed
+    public void forget(List<Message> admitted, long now) {
+        if (!hasIds(admitted))
+            return;
+        if (lock != null)
+            lock.lock();
+        try {
+            for (Message message : admitted) {
+                if (message.getDeduplicationId() == null)
+                    continue;
+                long key = key(message.getDeduplicationId());
+                synchronized (segmentLock(key)) {
+                    for (int probe = 0; probe < maxProbes; ++probe) {
+                        int slot = slot(key, probe);
+                        if (table.getLong(slot * entrySize) == key && table.getLong(slot * entrySize + 8) == now) {
+                            // The key stays, so that the probing goes on past it
+                            table.putLong(slot * entrySize + 8, now - window);
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        finally {
+            if (lock != null)
+                lock.unlock();
+        }
+    }
+}
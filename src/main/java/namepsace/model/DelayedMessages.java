@@ -0,0 +1,68 @@
+package namespace.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Messages pushed with a delay, held until they are due without a thread or a Timeout of their own.
+ * They are grouped in buckets by the tick they are due on, each bucket being a single Timeout of the VisibilityScheduler,
+ * which promotes all its messages at once: a delayed message only costs its slot in the list of its bucket.
+ * A message is never promoted early, and at most a tick late on top of the lateness of the scheduler.
+ */
+
+public abstract class DelayedMessages {
+    private static final long tickNanos = TimeUnit.MILLISECONDS.toNanos(10);
+    private VisibilityScheduler scheduler;
+    private long startTime = System.nanoTime();
+    // By due tick since the start time, which is never 0 since ticks are rounded up
+    private LongMap<Bucket> buckets = new LongMap<>();
+
+    private class Bucket extends VisibilityScheduler.Timeout {
+        private long tick;
+        private List<Message> messages = new ArrayList<>();
+
+        public Bucket(long tick, long delay) {
+            super(delay, TimeUnit.NANOSECONDS);
+            this.tick = tick;
+        }
+
+        @Override
+        public void run() {
+            // Once removed, nothing can be added to the bucket anymore
+            synchronized (buckets) {
+                buckets.remove(tick);
+            }
+            promote(messages);
+        }
+    }
+
+    public DelayedMessages(VisibilityScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    // Called by the scheduler with the messages that are due, in the order they were delayed
+    protected abstract void promote(List<Message> messages);
+
+    public void delay(Message message, long delay, TimeUnit unit) {
+        long now = System.nanoTime();
+        long tick = (now - startTime + unit.toNanos(delay)) / tickNanos + 1;
+        synchronized (buckets) {
+            Bucket bucket = buckets.get(tick);
+            if (bucket == null) {
+                bucket = new Bucket(tick, startTime + tick * tickNanos - now);
+                buckets.put(tick, bucket);
+                scheduler.schedule(bucket);
+            }
+            bucket.messages.add(message);
+        }
+    }
+
+    public void clear() {
+        synchronized (buckets) {
+            for (Bucket bucket : buckets.values())
+                bucket.cancel();
+            buckets.clear();
+        }
+    }
+}
@@ -1,220 +1,569 @@
 package namespace.model;
 
 import java.io.*;
-import java.nio.file.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.WatchKey;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 /*
  * File version of the MessageQueue.
- * It strives to deliver messages in FIFO order, but does not guarantee it.
+ * It strives to deliver messages in FIFO order, but does not guarantee it, except within a message group.
  * Then, the only operation we have to make thread safe is the ID computation.
  * This message queue can be shared with other processes.
- * The other operations including files are made "process-safe" by lock() and unlock().
- * Each FileQueue corresponds to a file.
- * Each line is a message preceeded by its handle.
+ * The other operations including files are made "process-safe" by ProcessLocks.
+ * Each FileQueue corresponds to a directory holding a SegmentedLog of its messages, appended through a Journal,
+ * and a LeaseIndex of the messages in flight, so that the ones of a process that crashed get redelivered.
+ * The queues of a directory share a FileQueueDirectory: its configuration, its watcher and its background pool.
  */
 
 public class FileQueue implements MessageQueue {
-    private Map<String, Thread> timeoutThreads;
-    private Thread confWatchingThread;
-    private File queue;
-    private File lock;
-    private File timeoutFile;
-    private char separator = '|';
-    private int visibilityTimeout = 10;
-    private long processId = 0;
+    // While messages wait for a group, which another process may unlock
+    private static final long sweepPeriod = 1000;
+    private static final byte binaryFlag = 1;
+    private static final byte groupFlag = 2;
+    private FileQueueDirectory directory;
+    private File queueDir;
+    private LeaseIndex leases;
+    private VisibilityScheduler.Timeout sweepTimeout;
+    private long nextSweep;
+    private Object sweepLock = new Object();
+    private boolean closed = false;
+    private volatile WatchKey watchKey;
+    private PullWaiters waiters = new PullWaiters();
+    private Object deleteLock = new Object();
+    private List<Long> pendingDeletes = new ArrayList<>();
+    private List<CompletableFuture<Void>> deleteFutures = new ArrayList<>();
+    private Runnable releasing = new Runnable() {
+        @Override
+        public void run() {
+            releasePending();
+        }
+    };
+    private QueueMetrics metrics = new QueueMetrics();
+    private SegmentedLog log;
+    private Journal journal;
+    private FsyncPolicy fsyncPolicy;
+    private ProcessLock readLock;
     private AtomicLong messageId = new AtomicLong(0);
+    private volatile DeduplicationWindow deduplication;
 
-    public class ConfWatchingRunnable implements Runnable {
-        private String confDirName;
+    public FileQueue(String queueId, FileQueueDirectory directory) {
+        this(queueId, directory, FsyncPolicy.OS, 0);
+    }
 
-        public ConfWatchingRunnable(String confDirName) {
-            this.confDirName = confDirName;
+    // The fsync interval is in milliseconds, and only used by the INTERVAL policy
+    public FileQueue(String queueId, FileQueueDirectory directory, FsyncPolicy fsyncPolicy, long fsyncInterval) {
+        this.directory = directory;
+        this.fsyncPolicy = fsyncPolicy;
+        queueDir = new File(directory.getDirName() + queueId);
+        try {
+            log = new SegmentedLog(queueDir, SegmentedLog.defaultSegmentSize, directory.getBackground());
         }
-
-        // This will watch the timeout file and ensure that timeout is shared among processes
-        @Override
-        public void run() {
-            Path path = Paths.get(confDirName);
-            FileSystem fs = path.getFileSystem();
-            try (WatchService service = fs.newWatchService()) {
-                path.register(service, StandardWatchEventKinds.ENTRY_MODIFY);
-                while (true) {
-                    WatchKey watchKey = service.take();
-                    for(WatchEvent<?> watchEvent : watchKey.pollEvents()) {
-                        Path changed = (Path) watchEvent.context();
-                        if (changed.endsWith("timeout"))
-                            readVisibilityTimeout();
-                    }
-                    watchKey.reset();
-                }
-            }
-            catch (Exception e) {}
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        // The producers and the consumers each have their ProcessLock, the configuration files have their own
+        ProcessLock appendLock = ProcessLock.forFile(new File(queueDir, "append.lock"));
+        journal = new Journal(log, appendLock, fsyncPolicy, fsyncInterval, directory.getScheduler(),
+                directory.getBackground(), metrics) {
+            @Override
+            protected void written() {
+                waiters.signalAll();
+            }
+        };
+        readLock = ProcessLock.forFile(new File(queueDir, "read.lock"));
+        leases = new LeaseIndex(new File(queueDir, "leases"), ProcessLock.forFile(new File(queueDir, "lease.lock")));
+        // The leases left by a crash are reclaimed right away
+        scheduleSweep(System.currentTimeMillis());
     }
 
-    public FileQueue(String queueId, String dirName) {
-        timeoutThreads = new ConcurrentHashMap<>();
-        queue = new File(dirName + queueId);
-        lock = new File(dirName + ".lock");
+    // The visibility timeout is shared by all the queues of the directory
+    @Override
+    public void setVisibilityTimeout(int visibilityTimeout) {
+        directory.setVisibilityTimeout(visibilityTimeout);
+    }
 
-        // Let's make sure the configuration directory exists
-        new File(dirName + ".conf").mkdir();
+    // A record is the packed handle, the push time in milliseconds since the epoch, the flags,
+    // the group ID if any (unsigned short length, then UTF-8), then the body as it is
+    private static ByteBuffer[] encode(Message message) {
+        byte[] group = message.getGroupId() == null ? null : message.getGroupId().getBytes(StandardCharsets.UTF_8);
+        if (group != null && group.length > 0xffff)
+            throw new IllegalArgumentException("The group ID takes more than 65535 bytes");
+        ByteBuffer header = ByteBuffer.allocate(8 + 8 + 1 + (group == null ? 0 : 2 + group.length));
+        header.putLong(message.getPackedHandle()).putLong(message.getPushTime());
+        header.put((byte) ((message.isBinary() ? binaryFlag : 0) | (group == null ? 0 : groupFlag)));
+        if (group != null)
+            header.putShort((short) group.length).put(group);
+        header.flip();
+        return new ByteBuffer[] { header, message.getBinaryBody() };
+    }
 
-        timeoutFile = new File(dirName + ".conf/timeout");
-        if(timeoutFile.exists() && timeoutFile.isFile())
-            readVisibilityTimeout();
+    // A binary body is read back as a view of the record
+    private static Message decode(byte[] record) {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        long handle = buffer.getLong(0);
+        long pushTime = buffer.getLong(8);
+        byte flags = buffer.get(16);
+        boolean binary = (flags & binaryFlag) != 0;
+        int bodyStart = 8 + 8 + 1;
+        String groupId = null;
+        if ((flags & groupFlag) != 0) {
+            int length = buffer.getShort(bodyStart) & 0xffff;
+            groupId = new String(record, bodyStart + 2, length, StandardCharsets.UTF_8);
+            bodyStart += 2 + length;
+        }
+        Message message;
+        if (binary)
+            message = new Message(ByteBuffer.wrap(record, bodyStart, record.length - bodyStart).slice());
         else
-            setVisibilityTimeout(visibilityTimeout);
+            message = new Message(new String(record, bodyStart, record.length - bodyStart, StandardCharsets.UTF_8));
+        message.setPackedHandle(handle);
+        message.setPushTime(pushTime);
+        message.setGroupId(groupId);
+        return message;
+    }
+
+    // A collision only makes two groups share their order
+    private static long groupKey(Message message) {
+        String groupId = message.getGroupId();
+        if (groupId == null)
+            return LeaseIndex.noGroup;
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < groupId.length(); ++i)
+            hash = (hash ^ groupId.charAt(i)) * 0x100000001b3L;
+        return hash == LeaseIndex.noGroup ? 1 : hash;
+    }
+
+    @Override
+    public void push(Message message) {
+        pushBatch(Collections.singletonList(message));
+    }
+
+    // A delayed message is appended right away, with the time it is due as its push time, so it survives restarts
+    // The reader leases it until then without delivering it, and the sweep appends it again once due
+    @Override
+    public void push(Message message, long delay, TimeUnit unit) {
+        join(push(Collections.singletonList(message), unit.toMillis(delay)));
+    }
+
+    @Override
+    public void pushBatch(List<Message> messages) {
+        join(pushBatchAsync(messages));
+    }
 
-        lock();
-        File processFile = new File(dirName + ".conf/process");
-        if(processFile.exists() && processFile.isFile()) {
-            List<String> lines = readLines(processFile, false);
-            if (!lines.isEmpty())
-                processId = Long.valueOf(lines.get(0)) + 1;
+    // Rethrows the failure of the future as it is, unless it is a checked exception
+    private static void join(CompletableFuture<Void> future) {
+        try {
+            future.join();
+        }
+        catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            if (cause instanceof IOException)
+                throw new UncheckedIOException((IOException) cause);
+            throw e;
         }
-        writeLines(processFile, Collections.singletonList(String.valueOf(processId)), false, false);
-        unlock();
+    }
+
+    // Returns once the records are queued in the Journal, with a future completed once they are durable
+    @Override
+    public CompletableFuture<Void> pushAsync(Message message) {
+        return pushBatchAsync(Collections.singletonList(message));
+    }
+
+    // The future fails with an UncheckedIOException if the records could not be written
+    public CompletableFuture<Void> pushBatchAsync(List<Message> messages) {
+        return push(messages, 0);
+    }
 
-        confWatchingThread = new Thread(new ConfWatchingRunnable(dirName));
-        confWatchingThread.start();
+    // The deduplication IDs are checked before the append, and the ones of the records that could not be appended
+    // are forgotten, so that the retries get through
+    private CompletableFuture<Void> push(List<Message> messages, long delay) {
+        final long now = System.currentTimeMillis();
+        List<Message> admitted = messages;
+        if (DeduplicationWindow.hasIds(messages)) {
+            admitted = deduplication().admit(messages, now);
+            metrics.recordDuplicates(messages.size() - admitted.size());
+            if (admitted.isEmpty())
+                return CompletableFuture.completedFuture(null);
+        }
+        for (Message message : admitted)
+            message.setPackedHandle(newHandle());
+        CompletableFuture<Void> future = append(admitted, delay);
+        if (admitted != messages) {
+            final List<Message> recorded = admitted;
+            future.whenComplete(new BiConsumer<Void, Throwable>() {
+                @Override
+                public void accept(Void result, Throwable failure) {
+                    if (failure != null)
+                        deduplication.forget(recorded, now);
+                }
+            });
+        }
+        metrics.recordPush(admitted.size());
+        return future;
     }
 
-    private void lock() {
-        // File system lock, leveraging the atomicity of the POSIX mkdir
-        while (!lock.mkdir()) {
-            try { Thread.sleep(50); }
-            catch(InterruptedException e) {}
+    // The window is only mapped once a message has a deduplication ID
+    private DeduplicationWindow deduplication() {
+        if (deduplication == null) {
+            synchronized (this) {
+                if (deduplication == null)
+                    deduplication = new DeduplicationWindow(new File(queueDir, "deduplication"),
+                            ProcessLock.forFile(new File(queueDir, "deduplication.lock")),
+                            DeduplicationWindow.defaultCapacity, DeduplicationWindow.defaultWindow);
+            }
         }
+        return deduplication;
     }
 
-    private void unlock() {
-        lock.delete();
+    // Handles have the process ID as their origin, a redelivered message is appended again with its next handle
+    private long newHandle() {
+        return Handle.pack(directory.getProcessId(), messageId.getAndIncrement(), 1);
     }
 
-    private boolean writeLines(File file, List<String> lines, boolean lock, boolean append) {
-        if (lock)
-            lock();
-        PrintWriter writer = null;
+    // The whole batch is appended at once, along with the concurrent ones, to be visible after the delay in milliseconds
+    private CompletableFuture<Void> append(List<Message> messages, long delay) {
+        // The push time is shared with other processes, hence the wall clock
+        long pushTime = System.currentTimeMillis() + Math.max(delay, 0);
+        List<ByteBuffer[]> records = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            message.setPushTime(pushTime);
+            records.add(encode(message));
+        }
+        return journal.append(records);
+    }
+
+    @Override
+    public Message pull() {
+        List<Message> messages = pull(1);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    // The leases are recorded before the read offset moves: a crash in between redelivers the messages
+    // The messages of a locked group are leased as waiting when read, and the ones whose group got unlocked since
+    // come first, since they are older than the ones left to read
+    @Override
+    public List<Message> pull(int max) {
+        List<Message> messages = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        long deadline = now + TimeUnit.SECONDS.toMillis(directory.getVisibilityTimeout());
+        long sweepAt = Long.MAX_VALUE;
+        long lockStart = System.nanoTime();
+        readLock.lock();
+        metrics.recordLockWait(System.nanoTime() - lockStart);
         try {
-            writer = new PrintWriter(new BufferedWriter(new FileWriter(file, append)));
-            for (String line : lines)
-                writer.println(line);
+            for (LeaseIndex.Lease lease : leases.takeWaiting(max, deadline)) {
+                byte[] record = log.readAt(lease.getSegment(), lease.getPosition());
+                if (record == null) {
+                    leases.release(lease.getHandle());
+                    continue;
+                }
+                Message message = decode(record);
+                message.setPackedHandle(lease.getHandle());
+                messages.add(message);
+                sweepAt = Math.min(sweepAt, deadline);
+            }
+            List<SegmentedLog.Record> records;
+            // The delayed messages, and the ones waiting for their group, are leased without being delivered,
+            // so the reading goes on past them
+            while (messages.isEmpty() && !(records = log.read(max)).isEmpty()) {
+                List<LeaseIndex.Lease> taken = new ArrayList<>(records.size());
+                List<Message> read = new ArrayList<>(records.size());
+                for (SegmentedLog.Record record : records) {
+                    Message message = decode(record.getData());
+                    long due = message.getPushTime();
+                    boolean delayed = due > now;
+                    taken.add(new LeaseIndex.Lease(message.getPackedHandle(), record.getSegment(), record.getPosition(),
+                            delayed ? due : deadline, delayed, groupKey(message)));
+                    read.add(message);
+                }
+                leases.take(taken);
+                // The offset must not reach the disk before the leases covering the messages
+                if (fsyncPolicy == FsyncPolicy.ALWAYS)
+                    leases.force();
+                log.commit();
+                for (int i = 0; i < taken.size(); ++i) {
+                    LeaseIndex.Lease lease = taken.get(i);
+                    if (!lease.isWaiting())
+                        sweepAt = Math.min(sweepAt, lease.getDeadline());
+                    if (!lease.isWaiting() && !lease.isDelayed())
+                        messages.add(read.get(i));
+                }
+            }
+            // The leases of another process that crashed are reclaimed by the ones still pulling
+            if (messages.isEmpty() && !sweepScheduled())
+                sweepAt = Math.min(sweepAt, leases.earliestDeadline());
         }
         catch (IOException e) {
-            return false;
+            throw new UncheckedIOException(e);
         }
         finally {
-            if (writer != null) {
-                writer.close();
-            }
-            if(lock)
-                unlock();
+            readLock.unlock();
         }
-        return true;
+
+        for (Message message : messages)
+            metrics.recordPull(TimeUnit.MILLISECONDS.toNanos(now - message.getPushTime()));
+        if (sweepAt != Long.MAX_VALUE)
+            scheduleSweep(sweepAt);
+        return messages;
     }
 
-    private List<String> readLines(File file, boolean lock) {
-        if (lock)
-            lock();
-        Scanner scanner = null;
+    private synchronized boolean sweepScheduled() {
+        return sweepTimeout != null;
+    }
+
+    private synchronized void scheduleSweep(long at) {
+        if (closed || (sweepTimeout != null && nextSweep <= at))
+            return;
+        if (sweepTimeout != null)
+            sweepTimeout.cancel();
+        nextSweep = at;
+        final Runnable sweep = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (sweepLock) {
+                    sweep();
+                }
+            }
+        };
+        // The sweep reads and writes files, it is handed over to the background pool
+        sweepTimeout = directory.getScheduler().schedule(new VisibilityScheduler.Timeout(new Runnable() {
+            @Override
+            public void run() {
+                directory.getBackground().execute(sweep);
+            }
+        }, Math.max(at - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS));
+    }
+
+    // Reclaims the expired leases of all the processes, and deletes the segments that no lease points to anymore
+    // Scheduled at the earliest deadline of the shared index, and every sweepPeriod while messages wait for their group
+    // Must be called with the sweep lock held, so that the sweeps never overlap
+    private void sweep() {
+        synchronized (this) {
+            sweepTimeout = null;
+            if (closed)
+                return;
+        }
+        long now = System.currentTimeMillis();
+        // Rescheduled if it fails, not to give up on the leases
+        long next = now + sweepPeriod;
         try {
-            scanner = new Scanner(file);
-            List<String> result = new ArrayList<>();
-            while (scanner.hasNext())
-                result.add(scanner.nextLine());
-            return result;
+            long deadline = now + TimeUnit.SECONDS.toMillis(directory.getVisibilityTimeout());
+            List<LeaseIndex.Lease> expired = leases.reclaim(now, deadline);
+            if (!expired.isEmpty())
+                redeliver(expired);
+            if (leases.hasReadyGroups())
+                waiters.signalAll();
+            readLock.lock();
+            try {
+                log.deleteBefore(Math.min(log.readSegment(), leases.firstSegment()));
+            }
+            finally {
+                readLock.unlock();
+            }
+            next = leases.earliestDeadline();
+            if (leases.hasWaiting())
+                next = Math.min(next, now + sweepPeriod);
         }
-        catch(IOException e) {
-            return Collections.emptyList();
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
         finally {
-            if (scanner != null) {
-                scanner.close();
-            }
-            if (lock)
-                unlock();
+            // Until a pull leases messages again
+            if (next != Long.MAX_VALUE)
+                scheduleSweep(next);
         }
     }
 
-    private void readVisibilityTimeout() {
-        // The timeoutFile file will always contain a timeout
-        visibilityTimeout = Integer.parseInt(readLines(timeoutFile, false).get(0));
+    // The old leases are only released once the messages are appended again, a crash in between duplicates them
+    // The delayed messages that are due get a new handle instead of their next one, since they were never delivered
+    // The messages of a group already wait again in the leases
+    private void redeliver(List<LeaseIndex.Lease> expired) throws IOException {
+        final List<Long> handles = new ArrayList<>(expired.size());
+        List<Message> messages = new ArrayList<>(expired.size());
+        for (LeaseIndex.Lease lease : expired) {
+            if (lease.isWaiting()) {
+                metrics.recordRedelivery();
+                continue;
+            }
+            byte[] record = log.readAt(lease.getSegment(), lease.getPosition());
+            if (record == null) {
+                leases.release(lease.getHandle());
+                continue;
+            }
+            Message message = decode(record);
+            if (lease.isDelayed())
+                message.setPackedHandle(newHandle());
+            else {
+                message.setPackedHandle(Handle.received(message.getPackedHandle()));
+                metrics.recordRedelivery();
+            }
+            messages.add(message);
+            handles.add(lease.getHandle());
+        }
+        if (messages.isEmpty())
+            return;
+        // The journal may complete the future on a background thread, it must not be waited for here
+        append(messages, 0).thenRun(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    leases.release(handles);
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
     }
 
-    @Override
-    public void setVisibilityTimeout(int visibilityTimeout) {
-        this.visibilityTimeout = visibilityTimeout;
-        String line = String.valueOf(visibilityTimeout);
-        writeLines(timeoutFile, Collections.singletonList(line), true, false);
+    // The queue directory is only watched once a consumer waits on it
+    private void watchDirectory() {
+        if (watchKey == null) {
+            synchronized (this) {
+                if (watchKey == null && !closed)
+                    watchKey = directory.watch(queueDir, waiters);
+            }
+        }
     }
 
+    // Woken up by the pushes of this process, and by the notifications of the segments modified by the others
     @Override
-    public void push(Message message) {
-        message.setHandle(processId + "_" + messageId.getAndIncrement());
-        String line = message.getHandle() + separator + message.getBody();
-        writeLines(queue, Collections.singletonList(line), true, true);
+    public Message pull(long timeout, TimeUnit unit) {
+        watchDirectory();
+        return waiters.pull(this, timeout, unit);
     }
 
-    // The consuming process also handles the visibility timeout, this is potentially a problem
+    // The signaled pulls run on the background pool, since they take the file locks
     @Override
-    public Message pull() {
-        lock();
-        List<String> allLines = readLines(queue, false);
-        if (allLines == null || allLines.isEmpty()) {
-            unlock();
-            return null;
-        }
-        String line = allLines.get(allLines.size() - 1);
-        writeLines(queue, allLines.subList(0, allLines.size() - 1), false, false);
-        unlock();
-
-        int delimiterPos = line.indexOf(separator);
-        String handle = line.substring(0, delimiterPos);
-        String body = line.substring(delimiterPos + 1);
-        Message message = new Message(handle, body);
-        Thread t = new Thread(new delayedInsert(this, message, visibilityTimeout));
-        timeoutThreads.put(handle, t);
-        t.start();
-        return message;
+    public CompletableFuture<Message> pullAsync(long timeout, TimeUnit unit) {
+        watchDirectory();
+        return waiters.pullAsync(this, timeout, unit, directory.getScheduler(), directory.getBackground());
     }
 
     @Override
     public void delete(String handle) {
-        Thread thread = timeoutThreads.get(handle);
-        if (thread == null)
+        long packed = Handle.parse(handle);
+        if (packed == Handle.none)
             return;
-        thread.interrupt();
-        timeoutThreads.remove(handle);
+        try {
+            LeaseIndex.Lease lease = leases.release(packed);
+            if (lease != null) {
+                metrics.recordDelete();
+                // Its group may have messages waiting
+                if (lease.getGroup() != LeaseIndex.noGroup)
+                    waiters.signal();
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     @Override
-    public void close() {
-        confWatchingThread.interrupt();
-        for (Thread thread : timeoutThreads.values())
-            thread.interrupt();
-        queue.delete();
+    public void deleteBatch(Collection<String> handles) {
+        List<Long> packed = new ArrayList<>(handles.size());
+        for (String handle : handles) {
+            long parsed = Handle.parse(handle);
+            if (parsed != Handle.none)
+                packed.add(parsed);
+        }
+        release(packed);
     }
 
-    private class delayedInsert implements Runnable {
-        private FileQueue queue;
-        private Message message;
-        private int timeout;
+    // The deletes queued meanwhile are released together by the background pool, with a single lease lock acquisition
+    @Override
+    public CompletableFuture<Void> deleteAsync(String handle) {
+        long packed = Handle.parse(handle);
+        if (packed == Handle.none)
+            return CompletableFuture.completedFuture(null);
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        boolean first;
+        synchronized (deleteLock) {
+            first = pendingDeletes.isEmpty();
+            pendingDeletes.add(packed);
+            deleteFutures.add(future);
+        }
+        if (first)
+            directory.getBackground().execute(releasing);
+        return future;
+    }
 
-        public delayedInsert(FileQueue queue, Message message, int timeout) {
-            this.queue = queue;
-            this.message = message;
-            this.timeout = timeout;
+    private void releasePending() {
+        List<Long> handles;
+        List<CompletableFuture<Void>> futures;
+        synchronized (deleteLock) {
+            handles = pendingDeletes;
+            futures = deleteFutures;
+            pendingDeletes = new ArrayList<>();
+            deleteFutures = new ArrayList<>();
+        }
+        try {
+            release(handles);
+        }
+        catch (RuntimeException e) {
+            for (CompletableFuture<Void> future : futures)
+                future.completeExceptionally(e);
+            return;
         }
+        for (CompletableFuture<Void> future : futures)
+            future.complete(null);
+    }
 
-        @Override
-        public void run() {
-            try { Thread.sleep(timeout * 1000); }
-            catch (InterruptedException e) { return; }
-            queue.push(message);
+    private void release(List<Long> handles) {
+        try {
+            boolean grouped = false;
+            for (LeaseIndex.Lease lease : leases.release(handles)) {
+                metrics.recordDelete();
+                grouped |= lease.getGroup() != LeaseIndex.noGroup;
+            }
+            if (grouped)
+                waiters.signalAll();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Pushes from other processes are seen through the watched directory, as for the waiting pulls
+    @Override
+    public boolean watch(Runnable watcher) {
+        watchDirectory();
+        waiters.watch(watcher);
+        return true;
+    }
+
+    @Override
+    public void unwatch(Runnable watcher) {
+        waiters.unwatch(watcher);
+    }
+
+    @Override
+    public QueueMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            if (sweepTimeout != null)
+                sweepTimeout.cancel();
+            if (watchKey != null)
+                directory.unwatch(watchKey);
         }
+        journal.force();
+        leases.close();
+        log.delete();
     }
 }
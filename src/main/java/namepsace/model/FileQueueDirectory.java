@@ -0,0 +1,224 @@
+package namespace.model;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * The part shared by the FileQueues of a directory, so that opening a queue only costs its own files.
+ * It owns the ".conf" directory: its lock, the visibility timeout shared by all the queues and processes,
+ * and the ID of this process, allocated once for all the queues.
+ * A single thread and WatchService follow the timeout file, and the segments of the queues that have waiting consumers.
+ * A queue directory is only registered once a consumer of this process waits on it,
+ * and its waiters are then woken up when another process appends to it.
+ * The blocking background work of the queues (segment deletions, interval fsyncs, lease sweeps) runs on a small pool,
+ * so that the VisibilityScheduler thread only hands it over.
+ */
+
+public class FileQueueDirectory {
+    private static final int backgroundThreads = 2;
+    private String dirName;
+    private VisibilityScheduler scheduler;
+    private ExecutorService background;
+    private ProcessLock confLock;
+    private File timeoutFile;
+    private volatile int visibilityTimeout = 10;
+    private long processId = -1;
+    private WatchService watchService;
+    private WatchKey confKey;
+    private Map<WatchKey, PullWaiters> watched = new ConcurrentHashMap<>();
+    private Thread watchingThread;
+
+    private class WatchingRunnable implements Runnable {
+        // This will watch the timeout file and ensure that timeout is shared among processes
+        // It will also wake up the waiting consumers when another process appends to their queue
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    WatchKey watchKey = watchService.take();
+                    for (WatchEvent<?> watchEvent : watchKey.pollEvents()) {
+                        Path changed = (Path) watchEvent.context();
+                        if (changed == null) {
+                            // Events were lost, anything may have changed
+                            readVisibilityTimeout();
+                            for (PullWaiters waiters : watched.values())
+                                waiters.signalAll();
+                        }
+                        else if (watchKey == confKey && changed.endsWith("timeout"))
+                            readVisibilityTimeout();
+                        else if (watchKey != confKey && changed.toString().endsWith(".log")) {
+                            PullWaiters waiters = watched.get(watchKey);
+                            if (waiters != null)
+                                waiters.signalAll();
+                        }
+                    }
+                    watchKey.reset();
+                }
+            }
+            catch (InterruptedException | ClosedWatchServiceException e) {}
+        }
+    }
+
+    public FileQueueDirectory(String dirName, VisibilityScheduler scheduler) {
+        this.dirName = dirName;
+        this.scheduler = scheduler;
+        background = Executors.newFixedThreadPool(backgroundThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "file-queue-background");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // Let's make sure the configuration directory exists
+        File confDir = new File(dirName + ".conf");
+        confDir.mkdirs();
+        confLock = ProcessLock.forFile(new File(confDir, "lock"));
+
+        timeoutFile = new File(confDir, "timeout");
+        if (timeoutFile.exists() && timeoutFile.isFile())
+            readVisibilityTimeout();
+        else
+            setVisibilityTimeout(visibilityTimeout);
+
+        try {
+            watchService = confDir.toPath().getFileSystem().newWatchService();
+            confKey = confDir.toPath().register(watchService, StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        watchingThread = new Thread(new WatchingRunnable(), "file-queue-watcher");
+        watchingThread.setDaemon(true);
+        watchingThread.start();
+    }
+
+    public String getDirName() {
+        return dirName;
+    }
+
+    public VisibilityScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public ExecutorService getBackground() {
+        return background;
+    }
+
+    // Allocated on the first call, once for all the queues of this process
+    public synchronized long getProcessId() {
+        if (processId < 0) {
+            confLock.lock();
+            try {
+                processId = 0;
+                File processFile = new File(dirName + ".conf/process");
+                if (processFile.exists() && processFile.isFile()) {
+                    List<String> lines = readLines(processFile, false);
+                    if (!lines.isEmpty())
+                        processId = Long.valueOf(lines.get(0)) + 1;
+                }
+                writeLines(processFile, Collections.singletonList(String.valueOf(processId)), false);
+            }
+            finally {
+                confLock.unlock();
+            }
+        }
+        return processId;
+    }
+
+    public int getVisibilityTimeout() {
+        return visibilityTimeout;
+    }
+
+    public void setVisibilityTimeout(int visibilityTimeout) {
+        this.visibilityTimeout = visibilityTimeout;
+        String line = String.valueOf(visibilityTimeout);
+        writeLines(timeoutFile, Collections.singletonList(line), true);
+    }
+
+    private void readVisibilityTimeout() {
+        // The timeoutFile file will always contain a timeout, once its writer is done with it
+        List<String> lines = readLines(timeoutFile, true);
+        if (!lines.isEmpty())
+            visibilityTimeout = Integer.parseInt(lines.get(0));
+    }
+
+    // Wakes up the waiters when another process appends to the queue, until the key is cancelled
+    public WatchKey watch(File queueDir, PullWaiters waiters) {
+        try {
+            WatchKey key = queueDir.toPath().register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watched.put(key, waiters);
+            return key;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void unwatch(WatchKey key) {
+        key.cancel();
+        watched.remove(key);
+    }
+
+    private boolean writeLines(File file, List<String> lines, boolean lock) {
+        if (lock)
+            confLock.lock();
+        PrintWriter writer = null;
+        try {
+            writer = new PrintWriter(new BufferedWriter(new FileWriter(file, false)));
+            for (String line : lines)
+                writer.println(line);
+        }
+        catch (IOException e) {
+            return false;
+        }
+        finally {
+            if (writer != null) {
+                writer.close();
+            }
+            if (lock)
+                confLock.unlock();
+        }
+        return true;
+    }
+
+    private List<String> readLines(File file, boolean lock) {
+        if (lock)
+            confLock.lock();
+        Scanner scanner = null;
+        try {
+            scanner = new Scanner(file);
+            List<String> result = new ArrayList<>();
+            while (scanner.hasNext())
+                result.add(scanner.nextLine());
+            return result;
+        }
+        catch (IOException e) {
+            return Collections.emptyList();
+        }
+        finally {
+            if (scanner != null) {
+                scanner.close();
+            }
+            if (lock)
+                confLock.unlock();
+        }
+    }
+
+    // The queues must be closed first
+    public void close() {
+        watchingThread.interrupt();
+        try {
+            watchService.close();
+        }
+        catch (IOException e) {}
+        background.shutdown();
+    }
+}
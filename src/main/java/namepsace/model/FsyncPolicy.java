@@ -0,0 +1,15 @@
+package namespace.model;
+
+/*
+ * When the Journal of a FileQueue forces its writes to the disk.
+ * ALWAYS forces each group of writes before completing them, INTERVAL forces them every few milliseconds,
+ * and OS leaves it to the operating system, completing the writes as soon as they are handed to it.
+ * ALWAYS also forces the leases of the pulled messages before the read offset moves past them,
+ * so that the messages in flight survive a crash of the OS as well as the pushed ones.
+ */
+
+public enum FsyncPolicy {
+    ALWAYS,
+    INTERVAL,
+    OS
+}
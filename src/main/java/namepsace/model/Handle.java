@@ -0,0 +1,60 @@
+package namespace.model;
+
+/*
+ * Handles are packed in a long: 20 bits for their origin (the shard or the process that created them),
+ * 36 bits for their sequence number, and 8 bits for the number of times their message was received.
+ * The queues only deal with packed handles, Message.getHandle() turns them into a String at the edge of the API.
+ * Receive counts start at 1, so that 0 is never a valid handle, and wrap from 255 back to 1,
+ * so that every delivery of a message gets a handle differing from the one before, however often it is redelivered.
+ */
+
+public final class Handle {
+    public static final long none = 0;
+    private static final int countBits = 8;
+    private static final int sequenceBits = 36;
+    private static final long countMask = (1L << countBits) - 1;
+    private static final long sequenceMask = (1L << sequenceBits) - 1;
+    private static final long originMask = (1L << (64 - sequenceBits - countBits)) - 1;
+
+    private Handle() {
+    }
+
+    // The origin and the sequence are truncated to their bits, a receive count of 0 is kept as it is
+    public static long pack(long origin, long sequence, int receiveCount) {
+        return (origin & originMask) << (sequenceBits + countBits)
+                | (sequence & sequenceMask) << countBits
+                | (receiveCount - 1) % countMask + 1;
+    }
+
+    public static int origin(long handle) {
+        return (int) (handle >>> (sequenceBits + countBits));
+    }
+
+    public static long sequence(long handle) {
+        return (handle >>> countBits) & sequenceMask;
+    }
+
+    // The number of times the message was received, modulo 255
+    public static int receiveCount(long handle) {
+        return (int) (handle & countMask);
+    }
+
+    // Handle of the next delivery of the same message, so that a late delete() with the previous one misses it
+    public static long received(long handle) {
+        return pack(origin(handle), sequence(handle), receiveCount(handle) + 1);
+    }
+
+    public static String toString(long handle) {
+        return Long.toUnsignedString(handle);
+    }
+
+    // Returns none for strings that are not handles
+    public static long parse(String handle) {
+        try {
+            return Long.parseUnsignedLong(handle);
+        }
+        catch (NumberFormatException e) {
+            return none;
+        }
+    }
+}
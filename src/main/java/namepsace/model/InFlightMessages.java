@@ -0,0 +1,101 @@
+package namespace.model;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The messages pulled from a queue and not deleted yet, indexed by their packed handle.
+ * Each entry is also the visibility Timeout of its message, so hiding a message costs a single allocation.
+ * The entries are spread over striped LongMaps, each one guarded by its own monitor.
+ * Whoever removes an entry first wins: delete() cancels its Timeout and calls deleted(), an expired Timeout calls redeliver().
+ * The consumer gets a copy of the message carrying the handle, and the entry keeps the message of the queue:
+ * the queue redelivers its own instance, and a late delete() with the copy of a previous delivery misses the next one.
+ */
+
+public abstract class InFlightMessages {
+    private static final int stripeBits = 4;
+    private LongMap<Entry>[] stripes;
+    private VisibilityScheduler scheduler;
+
+    private class Entry extends VisibilityScheduler.Timeout {
+        private Message message;
+        private long handle;
+
+        public Entry(Message message, long handle, int visibilityTimeout) {
+            super(visibilityTimeout, TimeUnit.SECONDS);
+            this.message = message;
+            this.handle = handle;
+        }
+
+        @Override
+        public void run() {
+            if (remove(handle) != null)
+                redeliver(message, handle);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public InFlightMessages(VisibilityScheduler scheduler) {
+        stripes = new LongMap[1 << stripeBits];
+        for (int i = 0; i < stripes.length; ++i)
+            stripes[i] = new LongMap<>();
+        this.scheduler = scheduler;
+    }
+
+    // Called by the scheduler when the visibility timeout of a message expires, with the handle it was pulled with
+    protected abstract void redeliver(Message message, long handle);
+
+    // Called by the thread deleting a message in flight
+    protected void deleted(Message message, long handle) {
+    }
+
+    private LongMap<Entry> stripeOf(long handle) {
+        return stripes[(int) ((handle * 0x9E3779B97F4A7C15L) >>> (64 - stripeBits))];
+    }
+
+    private Entry remove(long handle) {
+        LongMap<Entry> stripe = stripeOf(handle);
+        synchronized (stripe) {
+            return stripe.remove(handle);
+        }
+    }
+
+    // Returns the copy of the message to deliver, with the handle
+    public Message hide(Message message, long handle, int visibilityTimeout) {
+        Entry entry = new Entry(message, handle, visibilityTimeout);
+        LongMap<Entry> stripe = stripeOf(handle);
+        // The entry is registered before being scheduled, so that it can always find itself when it expires
+        synchronized (stripe) {
+            stripe.put(handle, entry);
+        }
+        scheduler.schedule(entry);
+        Message delivered = message.copy();
+        delivered.setPackedHandle(handle);
+        return delivered;
+    }
+
+    // Returns whether the message was still in flight
+    public boolean delete(String handle) {
+        long packed = Handle.parse(handle);
+        if (packed == Handle.none)
+            return false;
+        Entry entry = remove(packed);
+        if (entry == null)
+            return false;
+        entry.cancel();
+        deleted(entry.message, packed);
+        return true;
+    }
+
+    public void clear() {
+        for (LongMap<Entry> stripe : stripes) {
+            List<Entry> entries;
+            synchronized (stripe) {
+                entries = stripe.values();
+                stripe.clear();
+            }
+            for (Entry entry : entries)
+                entry.cancel();
+        }
+    }
+}
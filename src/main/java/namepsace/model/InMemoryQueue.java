@@ -1,26 +1,105 @@
 package namespace.model;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Deque;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /*
  * In memory version of the MessageQueue.
- * It strives to deliver messages in FIFO order, but does not guarantee it.
+ * It strives to deliver messages in FIFO order, but does not guarantee it, except within a message group.
  * Then, the only operation we have to make thread safe is the ID computation.
+ * The queue can be split in shards, each one with its own dequeue and IDs, to scale with the cores.
+ * Visibility timeouts are handled by the VisibilityScheduler shared by the service.
  */
 
 public class InMemoryQueue implements MessageQueue {
-    private Deque<Message> internalDequeue;
-    private Map<String, Thread> timeoutThreads;
+    private static AtomicInteger threadCount = new AtomicInteger(0);
+    private static ThreadLocal<Integer> threadIndex = new ThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() {
+            return threadCount.getAndIncrement() & Integer.MAX_VALUE;
+        }
+    };
+    private Shard[] shards;
+    private VisibilityScheduler scheduler;
+    private InFlightMessages inFlight;
+    private DelayedMessages delayed;
+    private PullWaiters waiters = new PullWaiters();
+    private QueueMetrics metrics = new QueueMetrics();
     private int visibilityTimeout = 10;
-    private AtomicLong messageId = new AtomicLong(0);
+    private volatile DeduplicationWindow deduplication;
+
+    // A handle packs its shard as its origin, so a redelivered message goes back to its shard
+    private static class Shard {
+        private Deque<Message> internalDequeue = new ConcurrentLinkedDeque<>();
+        private AtomicLong messageId = new AtomicLong(0);
+        private MessageGroups groups = new MessageGroups();
+    }
 
-    public InMemoryQueue() {
-        internalDequeue = new ConcurrentLinkedDeque<>();
-        timeoutThreads = new ConcurrentHashMap<>();
+    public InMemoryQueue(VisibilityScheduler scheduler) {
+        this(scheduler, 1);
+    }
+
+    public InMemoryQueue(VisibilityScheduler scheduler, int shardCount) {
+        this.scheduler = scheduler;
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; ++i)
+            shards[i] = new Shard();
+        inFlight = new InFlightMessages(scheduler) {
+            @Override
+            protected void redeliver(Message message, long handle) {
+                Shard shard = shards[Handle.origin(handle)];
+                message.setPackedHandle(Handle.received(handle));
+                message.setPushTime(System.nanoTime());
+                if (message.getGroupId() != null)
+                    shard.groups.release(message, true);
+                else
+                    shard.internalDequeue.addLast(message);
+                metrics.recordRedelivery();
+                waiters.signal();
+            }
+
+            @Override
+            protected void deleted(Message message, long handle) {
+                if (message.getGroupId() != null
+                        && shards[Handle.origin(handle)].groups.release(message, false))
+                    waiters.signal();
+            }
+        };
+        delayed = new DelayedMessages(scheduler) {
+            @Override
+            protected void promote(List<Message> messages) {
+                long now = System.nanoTime();
+                for (Message message : messages) {
+                    message.setPushTime(now);
+                    Shard shard = shards[Handle.origin(message.getPackedHandle())];
+                    if (message.getGroupId() != null)
+                        shard.groups.add(message);
+                    else
+                        shard.internalDequeue.addFirst(message);
+                }
+                waiters.signalAll();
+            }
+        };
+    }
+
+    // Each thread pushes to its home shard, and pulls from there first before stealing from the other shards
+    private int homeShard() {
+        return shards.length == 1 ? 0 : threadIndex.get() % shards.length;
+    }
+
+    // The shard of a message, which is the one of its group if it has one, whatever the thread
+    private int shardOf(Message message) {
+        if (message.getGroupId() == null)
+            return homeShard();
+        return (message.getGroupId().hashCode() & Integer.MAX_VALUE) % shards.length;
     }
 
     @Override
@@ -28,55 +107,159 @@ public class InMemoryQueue implements MessageQueue {
         this.visibilityTimeout = visibilityTimeout;
     }
 
+    // Returns whether the message is not a duplicate, counting it otherwise
+    // The DeduplicationWindow is allocated off-heap by the first push that has a deduplication ID
+    private boolean admit(Message message) {
+        if (message.getDeduplicationId() == null)
+            return true;
+        if (deduplication == null) {
+            synchronized (this) {
+                if (deduplication == null)
+                    deduplication = new DeduplicationWindow(DeduplicationWindow.defaultCapacity, DeduplicationWindow.defaultWindow);
+            }
+        }
+        if (!deduplication.admit(Collections.singletonList(message), System.currentTimeMillis()).isEmpty())
+            return true;
+        metrics.recordDuplicates(1);
+        return false;
+    }
+
     @Override
     public void push(Message message) {
-        message.setHandle(String.valueOf(messageId.getAndIncrement()));
-        internalDequeue.addFirst(message);
+        if (!admit(message))
+            return;
+        int index = shardOf(message);
+        Shard shard = shards[index];
+        message.setPackedHandle(Handle.pack(index, shard.messageId.getAndIncrement(), 1));
+        message.setPushTime(System.nanoTime());
+        if (message.getGroupId() != null)
+            shard.groups.add(message);
+        else
+            shard.internalDequeue.addFirst(message);
+        metrics.recordPush(1);
+        waiters.signal();
+    }
+
+    // Delayed messages wait in the DelayedMessages buckets, then go to the head of their shard once due
+    @Override
+    public void push(Message message, long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            push(message);
+            return;
+        }
+        if (!admit(message))
+            return;
+        int index = shardOf(message);
+        message.setPackedHandle(Handle.pack(index, shards[index].messageId.getAndIncrement(), 1));
+        delayed.delay(message, delay, unit);
+        metrics.recordPush(1);
+    }
+
+    @Override
+    public void pushBatch(List<Message> messages) {
+        for (Message message : messages)
+            push(message);
+    }
+
+    // The message keeps the handle of its next delivery, while the consumer gets a copy with the current one
+    private Message hide(Message message) {
+        metrics.recordPull(System.nanoTime() - message.getPushTime());
+        return inFlight.hide(message, message.getPackedHandle(), visibilityTimeout);
+    }
+
+    // Polls the home shard first, then steals from the next ones
+    // Each shard gives the oldest of its head and of the head of its first ready group
+    private Message poll(int home) {
+        for (int i = 0; i < shards.length; ++i) {
+            Shard shard = shards[(home + i) % shards.length];
+            Message message = null;
+            if (!shard.groups.isEmpty())
+                message = shard.groups.poll(shard.internalDequeue.peekLast());
+            if (message == null)
+                message = shard.internalDequeue.pollLast();
+            // The head of the shard may have been taken meanwhile
+            if (message == null && !shard.groups.isEmpty())
+                message = shard.groups.poll(null);
+            if (message != null)
+                return hide(message);
+        }
+        return null;
     }
 
     @Override
     public Message pull() {
-        Message message = internalDequeue.pollLast();
-        if(message == null)
-            return null;
-        Thread t = new Thread(new delayedInsert(internalDequeue, message, visibilityTimeout));
-        timeoutThreads.put(message.getHandle(), t);
-        t.start();
-        return message;
+        return poll(homeShard());
+    }
+
+    @Override
+    public List<Message> pull(int max) {
+        int home = homeShard();
+        List<Message> messages = new ArrayList<>(Math.min(max, 16));
+        Message message;
+        while (messages.size() < max && (message = poll(home)) != null)
+            messages.add(message);
+        return messages;
+    }
+
+    @Override
+    public Message pull(long timeout, TimeUnit unit) {
+        return waiters.pull(this, timeout, unit);
     }
 
     @Override
     public void delete(String handle) {
-        Thread thread = timeoutThreads.get(handle);
-        if (thread == null)
-            return;
-        thread.interrupt();
-        timeoutThreads.remove(handle);
+        if (inFlight.delete(handle))
+            metrics.recordDelete();
     }
 
     @Override
-    public void close() {
-        for (Thread thread : timeoutThreads.values())
-            thread.interrupt();
-        internalDequeue.clear();
+    public void deleteBatch(Collection<String> handles) {
+        for (String handle : handles)
+            delete(handle);
     }
 
-    private class delayedInsert implements Runnable {
-        private Deque<Message> dequeue;
-        private Message message;
-        private int timeout;
+    // Pushes never wait
+    @Override
+    public CompletableFuture<Void> pushAsync(Message message) {
+        push(message);
+        return CompletableFuture.completedFuture(null);
+    }
 
-        public delayedInsert(Deque<Message> dequeue, Message message, int timeout) {
-            this.dequeue = dequeue;
-            this.message = message;
-            this.timeout = timeout;
-        }
+    // The signaled pulls run on the scheduler thread, since they never wait either
+    @Override
+    public CompletableFuture<Message> pullAsync(long timeout, TimeUnit unit) {
+        return waiters.pullAsync(this, timeout, unit, scheduler, scheduler);
+    }
 
-        @Override
-        public void run() {
-            try { Thread.sleep(timeout * 1000); }
-            catch (InterruptedException e) { return; }
-            dequeue.addLast(message);
+    @Override
+    public CompletableFuture<Void> deleteAsync(String handle) {
+        delete(handle);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public boolean watch(Runnable watcher) {
+        waiters.watch(watcher);
+        return true;
+    }
+
+    @Override
+    public void unwatch(Runnable watcher) {
+        waiters.unwatch(watcher);
+    }
+
+    @Override
+    public QueueMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        inFlight.clear();
+        delayed.clear();
+        for (Shard shard : shards) {
+            shard.internalDequeue.clear();
+            shard.groups.clear();
         }
     }
 }
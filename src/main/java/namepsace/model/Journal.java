@@ -0,0 +1,167 @@
+package namespace.model;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Group commit in front of the appends to a SegmentedLog.
+ * Concurrent appends are queued, and the first thread to find the journal idle writes them all at once,
+ * along with the ones queued meanwhile, with a single ProcessLock acquisition and a single fsync.
+ * Each append gets a future, completed once its records are durable according to the FsyncPolicy.
+ * With the INTERVAL policy, the fsync is scheduled on the VisibilityScheduler, one interval after the first write it covers,
+ * and run by the background Executor.
+ */
+
+public class Journal {
+    private SegmentedLog log;
+    private ProcessLock appendLock;
+    private FsyncPolicy fsyncPolicy;
+    private long fsyncInterval;
+    private VisibilityScheduler scheduler;
+    private Executor background;
+    private QueueMetrics metrics;
+    private List<Append> pending = new ArrayList<>();
+    // Held by the thread writing to the log, or forcing it
+    private ReentrantLock writeLock = new ReentrantLock();
+    private List<CompletableFuture<Void>> unforced = new ArrayList<>();
+    private boolean fsyncScheduled = false;
+    private Runnable forcing = new Runnable() {
+        @Override
+        public void run() {
+            force();
+        }
+    };
+
+    private static class Append {
+        private List<ByteBuffer[]> records;
+        private CompletableFuture<Void> future = new CompletableFuture<>();
+
+        public Append(List<ByteBuffer[]> records) {
+            this.records = records;
+        }
+    }
+
+    // The interval is in milliseconds, and only used by the INTERVAL policy
+    public Journal(SegmentedLog log, ProcessLock appendLock, FsyncPolicy fsyncPolicy, long fsyncInterval,
+                   VisibilityScheduler scheduler, Executor background, QueueMetrics metrics) {
+        this.log = log;
+        this.appendLock = appendLock;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncInterval = fsyncInterval;
+        this.scheduler = scheduler;
+        this.background = background;
+        this.metrics = metrics;
+    }
+
+    // Called once records are written to the log, before they are durable
+    protected void written() {
+    }
+
+    public CompletableFuture<Void> append(List<ByteBuffer[]> records) {
+        Append append = new Append(records);
+        synchronized (this) {
+            pending.add(append);
+        }
+        drain();
+        return append.future;
+    }
+
+    // Whoever gets the writeLock writes for the others. Every holder of the writeLock
+    // checks the pending appends again after releasing it, so none can be left behind
+    private void drain() {
+        while (hasPending() && writeLock.tryLock()) {
+            try {
+                List<Append> appends;
+                synchronized (this) {
+                    appends = pending;
+                    pending = new ArrayList<>();
+                }
+                if (!appends.isEmpty())
+                    write(appends);
+            }
+            finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    private synchronized boolean hasPending() {
+        return !pending.isEmpty();
+    }
+
+    // Must be called with the writeLock held
+    private void write(List<Append> appends) {
+        List<ByteBuffer[]> records = new ArrayList<>();
+        for (Append append : appends)
+            records.addAll(append.records);
+        try {
+            long lockStart = System.nanoTime();
+            appendLock.lock();
+            metrics.recordLockWait(System.nanoTime() - lockStart);
+            try {
+                log.append(records);
+            }
+            finally {
+                appendLock.unlock();
+            }
+            written();
+            // The other processes do not need to wait for our fsync
+            if (fsyncPolicy == FsyncPolicy.ALWAYS)
+                log.force();
+        }
+        catch (IOException | RuntimeException e) {
+            RuntimeException failure = e instanceof IOException ? new UncheckedIOException((IOException) e) : (RuntimeException) e;
+            for (Append append : appends)
+                append.future.completeExceptionally(failure);
+            return;
+        }
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            for (Append append : appends)
+                unforced.add(append.future);
+            if (!fsyncScheduled) {
+                fsyncScheduled = true;
+                scheduler.schedule(new VisibilityScheduler.Timeout(new Runnable() {
+                    @Override
+                    public void run() {
+                        background.execute(forcing);
+                    }
+                }, fsyncInterval, TimeUnit.MILLISECONDS));
+            }
+        }
+        else {
+            for (Append append : appends)
+                append.future.complete(null);
+        }
+    }
+
+    // Forces the writes so far, and completes their futures
+    public void force() {
+        writeLock.lock();
+        try {
+            fsyncScheduled = false;
+            if (unforced.isEmpty())
+                return;
+            try {
+                log.force();
+                for (CompletableFuture<Void> future : unforced)
+                    future.complete(null);
+            }
+            catch (IOException e) {
+                for (CompletableFuture<Void> future : unforced)
+                    future.completeExceptionally(new UncheckedIOException(e));
+            }
+            unforced.clear();
+        }
+        finally {
+            writeLock.unlock();
+        }
+        drain();
+    }
+}
@@ -0,0 +1,76 @@
+package namespace.model;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Lock-free and allocation-free histogram of latencies (in nanoseconds).
+ * Buckets are log-linear: each power of two is split in 8 sub-buckets, so percentiles are accurate within 12.5%.
+ * Values below 8 get exact buckets.
+ */
+
+public class LatencyHistogram {
+    private static final int subBucketBits = 3;
+    private static final int subBuckets = 1 << subBucketBits;
+    private static final int bucketCount = (64 - subBucketBits + 1) * subBuckets;
+    private AtomicLongArray counts = new AtomicLongArray(bucketCount);
+
+    private static int bucketIndex(long value) {
+        if (value < subBuckets)
+            return (int) Math.max(value, 0);
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - subBucketBits)) & (subBuckets - 1);
+        return (exponent - subBucketBits + 1) * subBuckets + subBucket;
+    }
+
+    // Highest value falling in the bucket
+    private static long bucketValue(int index) {
+        if (index < subBuckets)
+            return index;
+        int exponent = index / subBuckets + subBucketBits - 1;
+        long subBucket = index % subBuckets;
+        long lowest = (1L << exponent) + (subBucket << (exponent - subBucketBits));
+        return lowest + (1L << (exponent - subBucketBits)) - 1;
+    }
+
+    public void record(long nanos) {
+        counts.incrementAndGet(bucketIndex(nanos));
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < bucketCount; ++i) {
+            long count = other.counts.get(i);
+            if (count != 0)
+                counts.addAndGet(i, count);
+        }
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < bucketCount; ++i)
+            count += counts.get(i);
+        return count;
+    }
+
+    // Percentile between 0 and 100, 0 if nothing was recorded
+    public long getPercentile(double percentile) {
+        long total = getCount();
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < bucketCount; ++i) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return bucketValue(i);
+        }
+        return getMax();
+    }
+
+    public long getMax() {
+        for (int i = bucketCount - 1; i >= 0; --i) {
+            if (counts.get(i) != 0)
+                return bucketValue(i);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,484 @@
+package namespace.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/*
+ * Persistent index of the leases of a FileQueue: the messages pulled and not deleted yet, with the location
+ * of their record in the SegmentedLog and their deadline, in milliseconds since the epoch since it is shared with other processes.
+ * The index file is a sequence of fixed size entries, each one taking or releasing a lease, appended under a ProcessLock.
+ * A delayed message is leased until it is due without having been delivered, with an entry of its own type,
+ * so the index doubles as the persistent timer of the delayed messages.
+ * A lease carries the key of the message group of its message, if any, and a group is locked while one of its messages is taken.
+ * The messages of a locked group are read anyway, and leased with a waiting entry, without deadline, until their turn comes:
+ * the first one by location in the log is taken once the group is unlocked, and an expired lease of a group waits again,
+ * so it keeps its place ahead of the later messages of its group.
+ * Each process keeps the live leases in memory, and catches up with the entries of the others every time it takes the lock.
+ * They are indexed by deadline, by segment and by group as they are added and removed, so that the sweeps only visit
+ * the expired leases, and finding the earliest deadline or the first segment still needed does not depend on their number.
+ * Once most entries are dead, the live leases are written to a new file which replaces the index with an atomic rename.
+ * That file is the checkpoint, and only the entries appended to it since have to be replayed on top of it,
+ * so loading the index stays fast however long the queue has been running.
+ * The other processes notice the replacement by the change of the file identity, and load the new one.
+ * An entry torn by a crash is ignored, and overwritten by the next one.
+ * Entries are left to the OS to write until force() is called, so without it leases survive the crash of a process,
+ * not the crash of the OS.
+ */
+
+public class LeaseIndex {
+    private static final int entrySize = 1 + 8 + 8 + 8 + 8 + 8;
+    private static final byte takeEntry = 1;
+    private static final byte delayEntry = 2;
+    private static final byte waitEntry = 3;
+    private static final byte releaseEntry = 0;
+    public static final long noGroup = 0;
+    // Both orders end with the handle, so that distinct leases never compare equal
+    private static final Comparator<Lease> byLocation = new Comparator<Lease>() {
+        @Override
+        public int compare(Lease lease, Lease other) {
+            if (lease.segment != other.segment)
+                return Long.compare(lease.segment, other.segment);
+            if (lease.position != other.position)
+                return Long.compare(lease.position, other.position);
+            return Long.compare(lease.handle, other.handle);
+        }
+    };
+    private static final Comparator<Lease> byDeadline = new Comparator<Lease>() {
+        @Override
+        public int compare(Lease lease, Lease other) {
+            if (lease.deadline != other.deadline)
+                return Long.compare(lease.deadline, other.deadline);
+            return Long.compare(lease.handle, other.handle);
+        }
+    };
+    private static final int minCompactedEntries = 1024;
+    private File file;
+    private ProcessLock lock;
+    private FileChannel channel;
+    private Object fileKey;
+    // Length of the whole entries loaded so far
+    private long length = 0;
+    private LongMap<Lease> leases = new LongMap<>();
+    // The leases that expire, waiting ones excepted
+    private TreeSet<Lease> deadlines = new TreeSet<>(byDeadline);
+    // Number of leases per segment of the log
+    private TreeMap<Long, Integer> segments = new TreeMap<>();
+    private LongMap<Group> groups = new LongMap<>();
+    // Groups with waiting leases and none taken, in the order they became so
+    private Set<Group> readyGroups = new LinkedHashSet<>();
+    // Only changed with the lock held, read without it to skip the lock when nothing waits
+    private volatile int waitingCount = 0;
+
+    public static class Lease {
+        private long handle;
+        private long segment;
+        private long position;
+        private long deadline;
+        private boolean delayed;
+        private boolean waiting = false;
+        private long group;
+
+        public Lease(long handle, long segment, long position, long deadline) {
+            this(handle, segment, position, deadline, false, noGroup);
+        }
+
+        // A delayed lease holds a message that was never delivered, its deadline being when it is due
+        public Lease(long handle, long segment, long position, long deadline, boolean delayed) {
+            this(handle, segment, position, deadline, delayed, noGroup);
+        }
+
+        public Lease(long handle, long segment, long position, long deadline, boolean delayed, long group) {
+            this.handle = handle;
+            this.segment = segment;
+            this.position = position;
+            this.deadline = deadline;
+            this.delayed = delayed;
+            this.group = group;
+        }
+
+        public long getHandle() {
+            return handle;
+        }
+
+        public long getSegment() {
+            return segment;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        public boolean isDelayed() {
+            return delayed;
+        }
+
+        // A waiting lease holds a message that waits for its group to be unlocked, without deadline
+        public boolean isWaiting() {
+            return waiting;
+        }
+
+        public long getGroup() {
+            return group;
+        }
+    }
+
+    private static class Group {
+        private int taken = 0;
+        private TreeSet<Lease> waiting = new TreeSet<>(byLocation);
+    }
+
+    public LeaseIndex(File file, ProcessLock lock) {
+        this.file = file;
+        this.lock = lock;
+    }
+
+    // Must be called with the lock held, like all the following private methods
+    private void catchUp() throws IOException {
+        if (channel == null || !fileKey.equals(currentFileKey())) {
+            if (channel != null)
+                channel.close();
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            fileKey = currentFileKey();
+            leases.clear();
+            deadlines.clear();
+            segments.clear();
+            groups.clear();
+            readyGroups.clear();
+            waitingCount = 0;
+            length = 0;
+        }
+        long size = channel.size();
+        long end = size - (size - length) % entrySize;
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(end - length, 1024 * entrySize));
+        while (length < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - length));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, length + buffer.position()) < 0)
+                    throw new IOException("Unexpected end of the lease index");
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte type = buffer.get();
+                Lease lease = new Lease(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong(),
+                        type == delayEntry, buffer.getLong());
+                lease.waiting = type == waitEntry;
+                if (type == releaseEntry)
+                    remove(lease.handle);
+                else
+                    add(lease);
+            }
+            length += buffer.limit();
+        }
+    }
+
+    private Object currentFileKey() throws IOException {
+        return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+    }
+
+    // Every change of the leases goes through add() and remove(), which keep the indexes up to date
+    private void add(Lease lease) {
+        remove(lease.handle);
+        leases.put(lease.handle, lease);
+        if (!lease.waiting)
+            deadlines.add(lease);
+        Integer count = segments.get(lease.segment);
+        segments.put(lease.segment, count == null ? 1 : count + 1);
+        if (lease.group == noGroup || lease.delayed)
+            return;
+        Group group = groups.get(lease.group);
+        if (group == null) {
+            group = new Group();
+            groups.put(lease.group, group);
+        }
+        if (lease.waiting) {
+            group.waiting.add(lease);
+            ++waitingCount;
+        }
+        else
+            ++group.taken;
+        updateReady(group);
+    }
+
+    private Lease remove(long handle) {
+        Lease lease = leases.remove(handle);
+        if (lease == null)
+            return null;
+        if (!lease.waiting)
+            deadlines.remove(lease);
+        int count = segments.get(lease.segment);
+        if (count == 1)
+            segments.remove(lease.segment);
+        else
+            segments.put(lease.segment, count - 1);
+        if (lease.group == noGroup || lease.delayed)
+            return lease;
+        Group group = groups.get(lease.group);
+        if (lease.waiting) {
+            group.waiting.remove(lease);
+            --waitingCount;
+        }
+        else
+            --group.taken;
+        if (group.taken == 0 && group.waiting.isEmpty()) {
+            groups.remove(lease.group);
+            readyGroups.remove(group);
+        }
+        else
+            updateReady(group);
+        return lease;
+    }
+
+    private void updateReady(Group group) {
+        if (group.taken == 0 && !group.waiting.isEmpty())
+            readyGroups.add(group);
+        else
+            readyGroups.remove(group);
+    }
+
+    private static void put(ByteBuffer buffer, Lease lease, boolean release) {
+        byte type = release ? releaseEntry : lease.waiting ? waitEntry : lease.delayed ? delayEntry : takeEntry;
+        buffer.put(type).putLong(lease.handle).putLong(lease.segment).putLong(lease.position).putLong(lease.deadline)
+                .putLong(lease.group);
+    }
+
+    private void write(List<Lease> entries, boolean release) throws IOException {
+        for (Lease lease : entries) {
+            if (release)
+                remove(lease.handle);
+            else
+                add(lease);
+        }
+        append(entries, release);
+    }
+
+    // Appends the entries of leases already added or removed
+    private void append(List<Lease> entries, boolean release) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entries.size() * entrySize);
+        for (Lease lease : entries)
+            put(buffer, lease, release);
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer, length + buffer.position());
+        length += buffer.limit();
+        long entryCount = length / entrySize;
+        if (entryCount > minCompactedEntries && entryCount > 4L * leases.size())
+            compact();
+    }
+
+    private void compact() throws IOException {
+        File compacted = new File(file.getPath() + ".tmp");
+        List<Lease> live = leases.values();
+        ByteBuffer buffer = ByteBuffer.allocate(live.size() * entrySize);
+        for (Lease lease : live)
+            put(buffer, lease, false);
+        buffer.flip();
+        try (FileChannel compactedChannel = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining())
+                compactedChannel.write(buffer);
+            // The rename must not be able to reach the disk before the content
+            compactedChannel.force(true);
+        }
+        Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        channel.close();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        fileKey = currentFileKey();
+        length = buffer.limit();
+    }
+
+    // The leases of a group that is locked, or has messages waiting, are turned into waiting ones before being written
+    public void take(List<Lease> taken) throws IOException {
+        lock.lock();
+        try {
+            catchUp();
+            for (Lease lease : taken) {
+                if (lease.group != noGroup && !lease.delayed) {
+                    Group group = groups.get(lease.group);
+                    if (group != null && (group.taken > 0 || !group.waiting.isEmpty())) {
+                        lease.waiting = true;
+                        lease.deadline = Long.MAX_VALUE;
+                    }
+                }
+                add(lease);
+            }
+            append(taken, false);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // Takes the first waiting lease of up to max groups that are not locked anymore, until the deadline
+    public List<Lease> takeWaiting(int max, long deadline) throws IOException {
+        if (waitingCount == 0)
+            return Collections.emptyList();
+        lock.lock();
+        try {
+            catchUp();
+            List<Lease> taken = new ArrayList<>();
+            Iterator<Group> ready = readyGroups.iterator();
+            while (taken.size() < max && ready.hasNext()) {
+                Lease first = ready.next().waiting.first();
+                taken.add(new Lease(first.handle, first.segment, first.position, deadline, false, first.group));
+            }
+            if (!taken.isEmpty())
+                write(taken, false);
+            return taken;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // Whether some messages wait for a group that is not locked anymore
+    public boolean hasReadyGroups() throws IOException {
+        if (waitingCount == 0)
+            return false;
+        lock.lock();
+        try {
+            catchUp();
+            return !readyGroups.isEmpty();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // Whether some messages wait for their group, as of the last time the lock was taken
+    public boolean hasWaiting() {
+        return waitingCount > 0;
+    }
+
+    // Makes the entries written so far durable, the ones written by a compaction already are
+    public void force() throws IOException {
+        lock.lock();
+        try {
+            if (channel != null)
+                channel.force(false);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the lease, or null if it was not taken anymore
+    public Lease release(long handle) throws IOException {
+        lock.lock();
+        try {
+            catchUp();
+            Lease lease = leases.get(handle);
+            if (lease != null)
+                write(Collections.singletonList(lease), true);
+            return lease;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the leases that were still taken
+    public List<Lease> release(List<Long> handles) throws IOException {
+        lock.lock();
+        try {
+            catchUp();
+            List<Lease> released = new ArrayList<>(handles.size());
+            for (long handle : handles) {
+                // Removed right away, so that a handle given twice is only released once
+                Lease lease = remove(handle);
+                if (lease != null)
+                    released.add(lease);
+            }
+            write(released, true);
+            return released;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // Takes again the leases expired by now until the new deadline, so that a single process reclaims them
+    // The expired leases of a group wait again instead, with the next handle, and are returned as waiting ones
+    public List<Lease> reclaim(long now, long deadline) throws IOException {
+        lock.lock();
+        try {
+            catchUp();
+            List<Lease> expired = new ArrayList<>();
+            List<Lease> requeued = new ArrayList<>();
+            for (Lease lease : deadlines) {
+                if (lease.deadline > now)
+                    break;
+                if (lease.group != noGroup && !lease.delayed) {
+                    requeued.add(lease);
+                    Lease waiting = new Lease(Handle.received(lease.handle), lease.segment, lease.position, Long.MAX_VALUE,
+                            false, lease.group);
+                    waiting.waiting = true;
+                    expired.add(waiting);
+                }
+                else
+                    expired.add(new Lease(lease.handle, lease.segment, lease.position, deadline, lease.delayed, lease.group));
+            }
+            if (!requeued.isEmpty())
+                write(requeued, true);
+            if (!expired.isEmpty())
+                write(expired, false);
+            return expired;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // Long.MAX_VALUE when there is no lease
+    public long earliestDeadline() throws IOException {
+        lock.lock();
+        try {
+            catchUp();
+            return deadlines.isEmpty() ? Long.MAX_VALUE : deadlines.first().deadline;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // Long.MAX_VALUE when there is no lease
+    public long firstSegment() throws IOException {
+        lock.lock();
+        try {
+            catchUp();
+            Map.Entry<Long, Integer> first = segments.firstEntry();
+            return first == null ? Long.MAX_VALUE : first.getKey();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        try {
+            if (channel != null)
+                channel.close();
+        }
+        catch (IOException e) {}
+    }
+}
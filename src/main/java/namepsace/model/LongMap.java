@@ -0,0 +1,129 @@
+package namespace.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Map from primitive long keys to objects, with open addressing and linear probing, so its entries cost no allocation.
+ * Removals shift the following entries back instead of leaving tombstones, so lookups never slow down.
+ * The key 0 is reserved for the free slots.
+ * It is not thread safe.
+ */
+
+public class LongMap<V> {
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size = 0;
+
+    public LongMap() {
+        this(16);
+    }
+
+    // The capacity is rounded up to a power of two
+    public LongMap(int capacity) {
+        int length = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        keys = new long[length];
+        values = new Object[length];
+        mask = length - 1;
+    }
+
+    private static int hash(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private int indexOf(long key) {
+        int index = hash(key) & mask;
+        while (keys[index] != 0 && keys[index] != key)
+            index = (index + 1) & mask;
+        return index;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        return (V) values[indexOf(key)];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (key == 0)
+            throw new IllegalArgumentException("0 is not a valid key");
+        int index = indexOf(key);
+        V previous = (V) values[index];
+        if (keys[index] == 0) {
+            // Keeps the load under one half, for short probes
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                index = indexOf(key);
+            }
+            keys[index] = key;
+            ++size;
+        }
+        values[index] = value;
+        return previous;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int index = indexOf(key);
+        if (keys[index] == 0)
+            return null;
+        V previous = (V) values[index];
+        // Moves back the entries of the probe sequence that cannot be found anymore
+        int free = index;
+        int next = index;
+        while (true) {
+            next = (next + 1) & mask;
+            if (keys[next] == 0)
+                break;
+            int home = hash(keys[next]) & mask;
+            boolean reachable = free <= next ? free < home && home <= next : free < home || home <= next;
+            if (!reachable) {
+                keys[free] = keys[next];
+                values[free] = values[next];
+                free = next;
+            }
+        }
+        keys[free] = 0;
+        values[free] = null;
+        --size;
+        return previous;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> result = new ArrayList<>(size);
+        for (int i = 0; i < keys.length; ++i) {
+            if (keys[i] != 0)
+                result.add((V) values[i]);
+        }
+        return result;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new Object[oldValues.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldKeys[i] != 0) {
+                int index = indexOf(oldKeys[i]);
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+}
@@ -1,15 +1,33 @@
 package namespace.model;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 /*
-  * TODO: try another implementation with a switch for the message body type
-  * This switch would have values "text" or "binary" and this would determine
-  * If messages are treated as regular text (String) or some binary data that
-  * we could choose to encode / decode with base64.
-  */
+ * A message body is either text (String) or binary (ByteBuffer), isBinary() tells which one.
+ * Binary bodies are never copied by the queues that can avoid it: the buffer given to the constructor
+ * is the one that gets stored, so it must not be modified afterwards.
+ * getBinaryBody() returns a view of the buffer, with its own position and limit.
+ * Backends that only deal with text (SQS) encode binary bodies with base64 at their boundary.
+ * The messages of a same group are delivered in FIFO order, one at a time: the group is locked while one of them is in flight.
+ * Messages without a group keep the best effort order of their queue. Only InMemoryQueue, FileQueue and SqsQueue (on FIFO queues)
+ * support groups, the other backends ignore them.
+ * A message whose deduplication ID was pushed within the deduplication window of its queue is dropped by the push,
+ * which lets the producers retry safely. InMemoryQueue, FileQueue and SqsQueue (on FIFO queues) deduplicate.
+ */
 
 public class Message {
     private String handle;
+    // Handle given by the queues, turned into the String one on demand
+    private long packedHandle = Handle.none;
     private String body;
+    private ByteBuffer binaryBody;
+    // Time of the push, on the clock of the queue that set it
+    private long pushTime;
+    private String groupId;
+    private String deduplicationId;
 
     public Message(String body) {
         this.body = body;
@@ -20,19 +38,113 @@ public class Message {
         this.body = body;
     }
 
+    public Message(ByteBuffer body) {
+        this.binaryBody = body;
+    }
+
+    public Message(byte[] body) {
+        this(ByteBuffer.wrap(body));
+    }
+
+    public Message(String handle, ByteBuffer body) {
+        this.handle = handle;
+        this.binaryBody = body;
+    }
+
     public String getHandle() {
+        if (handle == null && packedHandle != Handle.none)
+            handle = Handle.toString(packedHandle);
         return handle;
     }
 
     public void setHandle(String handle) {
         this.handle = handle;
+        this.packedHandle = Handle.none;
+    }
+
+    long getPackedHandle() {
+        return packedHandle;
+    }
+
+    void setPackedHandle(long packedHandle) {
+        this.packedHandle = packedHandle;
+        this.handle = null;
+    }
+
+    long getPushTime() {
+        return pushTime;
+    }
+
+    void setPushTime(long pushTime) {
+        this.pushTime = pushTime;
+    }
+
+    // Null for the messages without a group
+    public String getGroupId() {
+        return groupId;
+    }
+
+    public void setGroupId(String groupId) {
+        this.groupId = groupId;
+    }
+
+    // Null for the messages that are never deduplicated
+    public String getDeduplicationId() {
+        return deduplicationId;
+    }
+
+    public void setDeduplicationId(String deduplicationId) {
+        this.deduplicationId = deduplicationId;
+    }
+
+    // Sets the deduplication ID to the SHA-256 of the body, so that the same body is only pushed once per window
+    public void deduplicateByContent() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(getBinaryBody());
+            StringBuilder id = new StringBuilder(64);
+            for (byte b : digest.digest())
+                id.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            deduplicationId = id.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
     }
 
+    // Another instance of the message, sharing its body, for the queues to hand each delivery its own
+    Message copy() {
+        Message copy = binaryBody != null ? new Message(binaryBody) : new Message(body);
+        copy.pushTime = pushTime;
+        copy.groupId = groupId;
+        copy.deduplicationId = deduplicationId;
+        return copy;
+    }
+
+    public boolean isBinary() {
+        return binaryBody != null;
+    }
+
+    // Null for binary messages
     public String getBody() {
         return body;
     }
 
     public void setBody(String body) {
         this.body = body;
+        this.binaryBody = null;
+    }
+
+    // Text bodies are encoded in UTF-8
+    public ByteBuffer getBinaryBody() {
+        if (binaryBody == null)
+            return ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8));
+        return binaryBody.duplicate();
+    }
+
+    public void setBinaryBody(ByteBuffer body) {
+        this.binaryBody = body;
+        this.body = null;
     }
 }
@@ -0,0 +1,84 @@
+package namespace.model;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * The messages of an in-memory queue that belong to a group, each group with its own deque, in FIFO order.
+ * A group is locked from the pull of one of its messages until that message is deleted or redelivered,
+ * so the groups are consumed in parallel, but each one by a single consumer at a time.
+ * The groups that have messages and are not locked wait in the ready deque, in the order they became ready.
+ * A group only exists while it has messages or is locked, so the index does not grow with the number of groups ever seen.
+ * Everything is guarded by the monitor of the MessageGroups, held for a few operations on the deques.
+ */
+
+public class MessageGroups {
+    private Map<String, Group> groups = new HashMap<>();
+    private Deque<Group> ready = new ArrayDeque<>();
+    // Messages waiting in the groups, read without the monitor to skip empty indexes
+    private volatile int size = 0;
+
+    private static class Group {
+        private Deque<Message> messages = new ArrayDeque<>();
+        private boolean locked = false;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // The message must have a group
+    public synchronized void add(Message message) {
+        Group group = groups.get(message.getGroupId());
+        if (group == null) {
+            group = new Group();
+            groups.put(message.getGroupId(), group);
+        }
+        group.messages.addLast(message);
+        ++size;
+        if (!group.locked && group.messages.size() == 1)
+            ready.addLast(group);
+    }
+
+    // Takes the head of the first ready group and locks it, unless other is not null and was pushed before that head
+    public synchronized Message poll(Message other) {
+        Group group = ready.peekFirst();
+        if (group == null)
+            return null;
+        Message message = group.messages.peekFirst();
+        if (other != null && message.getPushTime() - other.getPushTime() > 0)
+            return null;
+        ready.pollFirst();
+        group.messages.pollFirst();
+        group.locked = true;
+        --size;
+        return message;
+    }
+
+    // Unlocks the group of a pulled message, which goes back to the head of its group if it is redelivered
+    // Returns whether the group has messages to deliver
+    public synchronized boolean release(Message message, boolean redelivered) {
+        Group group = groups.get(message.getGroupId());
+        if (group == null || !group.locked)
+            return false;
+        group.locked = false;
+        if (redelivered) {
+            group.messages.addFirst(message);
+            ++size;
+        }
+        if (group.messages.isEmpty()) {
+            groups.remove(message.getGroupId());
+            return false;
+        }
+        ready.addLast(group);
+        return true;
+    }
+
+    public synchronized void clear() {
+        groups.clear();
+        ready.clear();
+        size = 0;
+    }
+}
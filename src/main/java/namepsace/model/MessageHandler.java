@@ -0,0 +1,10 @@
+package namespace.model;
+
+/*
+ * Processes the messages of a Subscription.
+ * A message is deleted once handle() returns, and left to be redelivered if it throws.
+ */
+
+public interface MessageHandler {
+    void handle(Message message) throws Exception;
+}
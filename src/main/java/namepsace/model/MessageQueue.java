@@ -1,9 +1,35 @@
 package namespace.model;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The asynchronous operations return without waiting for the backend, and complete their future once done.
+ * Their futures may be completed from the internal threads of the queue:
+ * dependent actions that block should be given their own Executor, with the "Async" methods of CompletableFuture.
+ */
+
 public interface MessageQueue {
     void setVisibilityTimeout(int visibilityTimeout);
     void push(Message message);
+    // The message stays invisible until the delay expires
+    void push(Message message, long delay, TimeUnit unit);
+    void pushBatch(List<Message> messages);
     Message pull();
+    List<Message> pull(int max);
+    Message pull(long timeout, TimeUnit unit);
     void delete(String handle);
+    void deleteBatch(Collection<String> handles);
+    CompletableFuture<Void> pushAsync(Message message);
+    // Completes with null if the timeout expires
+    CompletableFuture<Message> pullAsync(long timeout, TimeUnit unit);
+    CompletableFuture<Void> deleteAsync(String handle);
+    // Calls the watcher once, the next time messages may have become available, from the thread that made them so
+    // Returns false without keeping it if the queue cannot tell, in which case it has to be polled
+    boolean watch(Runnable watcher);
+    void unwatch(Runnable watcher);
+    QueueMetrics getMetrics();
     void close();
 }
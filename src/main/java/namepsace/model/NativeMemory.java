@@ -0,0 +1,73 @@
+package namespace.model;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+
+import sun.misc.Unsafe;
+
+/*
+ * The operations of Unsafe on native memory used by SharedMemoryQueue, at absolute addresses, in the native byte order.
+ * It is the only class of the tree using Unsafe, and the only source of the warnings javac gives about the internal API,
+ * which are expected.
+ */
+
+final class NativeMemory {
+    private static final Unsafe unsafe;
+    private static final long addressOffset;
+
+    static {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = (Unsafe) field.get(null);
+            addressOffset = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private NativeMemory() {}
+
+    // The address of the memory of a direct or mapped buffer
+    static long address(Buffer buffer) {
+        return unsafe.getLong(buffer, addressOffset);
+    }
+
+    static int getInt(long address) {
+        return unsafe.getInt(address);
+    }
+
+    static void putInt(long address, int value) {
+        unsafe.putInt(address, value);
+    }
+
+    static long getLong(long address) {
+        return unsafe.getLong(address);
+    }
+
+    static void putLong(long address, long value) {
+        unsafe.putLong(address, value);
+    }
+
+    static long getLongVolatile(long address) {
+        return unsafe.getLongVolatile(null, address);
+    }
+
+    static void putLongVolatile(long address, long value) {
+        unsafe.putLongVolatile(null, address, value);
+    }
+
+    // Ordered after the previous writes, without waiting for the following ones
+    static void putOrderedLong(long address, long value) {
+        unsafe.putOrderedLong(null, address, value);
+    }
+
+    static boolean compareAndSwapLong(long address, long expected, long updated) {
+        return unsafe.compareAndSwapLong(null, address, expected, updated);
+    }
+
+    static long getAndAddLong(long address, long delta) {
+        return unsafe.getAndAddLong(null, address, delta);
+    }
+}
@@ -0,0 +1,298 @@
+package namespace.model;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Bounded in memory version of the MessageQueue, keeping the waiting messages out of the heap.
+ * The bodies are copied into a ring of direct memory allocated once, of a fixed byte capacity.
+ * A record is [int length, with the sign bit set for binary bodies][long push time][body], and may wrap around the ring.
+ * Pushes and pulls have their own lock, like in a two-lock queue: the producers only move the tail and the consumers the head.
+ * The body is copied back to the heap when pulled, and its room is given back to the producers right away.
+ * Pulled messages stay on the heap until deleted, and the redelivered ones go first, as in InMemoryQueue.
+ * Delayed messages wait on the heap in DelayedMessages, and join the redelivered ones once due.
+ * Handles are given on pull, so a message gets a new one, on its own copy, each time it is delivered.
+ * Pushing to a full ring throws an IllegalStateException.
+ */
+
+public class OffHeapQueue implements MessageQueue {
+    private static final int headerSize = 4 + 8;
+    private int capacity;
+    // Views of the same memory, one for the producers and one for the consumers
+    private ByteBuffer writeRing;
+    private ByteBuffer readRing;
+    private ByteBuffer writeHeader = ByteBuffer.allocate(headerSize);
+    private ByteBuffer readHeader = ByteBuffer.allocate(headerSize);
+    private ReentrantLock pushLock = new ReentrantLock();
+    private ReentrantLock pullLock = new ReentrantLock();
+    // Byte positions since the creation, the ring index being the position modulo the capacity
+    private volatile long head = 0;
+    private volatile long tail = 0;
+    private Deque<Message> redelivered = new ConcurrentLinkedDeque<>();
+    private VisibilityScheduler scheduler;
+    private InFlightMessages inFlight;
+    private DelayedMessages delayed;
+    private PullWaiters waiters = new PullWaiters();
+    private QueueMetrics metrics = new QueueMetrics();
+    private int visibilityTimeout = 10;
+    private AtomicLong messageId = new AtomicLong(0);
+
+    public OffHeapQueue(VisibilityScheduler scheduler, int capacity) {
+        this.scheduler = scheduler;
+        writeRing = ByteBuffer.allocateDirect(capacity);
+        readRing = writeRing.duplicate();
+        this.capacity = capacity;
+        inFlight = new InFlightMessages(scheduler) {
+            @Override
+            protected void redeliver(Message message, long handle) {
+                message.setPushTime(System.nanoTime());
+                redelivered.addLast(message);
+                metrics.recordRedelivery();
+                waiters.signal();
+            }
+        };
+        delayed = new DelayedMessages(scheduler) {
+            @Override
+            protected void promote(List<Message> messages) {
+                long now = System.nanoTime();
+                for (Message message : messages) {
+                    message.setPushTime(now);
+                    redelivered.addFirst(message);
+                }
+                waiters.signalAll();
+            }
+        };
+    }
+
+    @Override
+    public void setVisibilityTimeout(int visibilityTimeout) {
+        this.visibilityTimeout = visibilityTimeout;
+    }
+
+    private static ByteBuffer bodyOf(Message message) {
+        if (message.isBinary())
+            return message.getBinaryBody();
+        return ByteBuffer.wrap(message.getBody().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Copies src into the ring from position, wrapping around its end
+    private void put(long position, ByteBuffer src) {
+        int index = (int) (position % capacity);
+        int first = Math.min(src.remaining(), capacity - index);
+        int limit = src.limit();
+        writeRing.clear();
+        writeRing.position(index);
+        src.limit(src.position() + first);
+        writeRing.put(src);
+        src.limit(limit);
+        if (src.hasRemaining()) {
+            writeRing.position(0);
+            writeRing.put(src);
+        }
+    }
+
+    // Fills dst from the ring at position, wrapping around its end
+    private void get(long position, ByteBuffer dst) {
+        int index = (int) (position % capacity);
+        int first = Math.min(dst.remaining(), capacity - index);
+        readRing.clear();
+        readRing.position(index);
+        readRing.limit(index + first);
+        dst.put(readRing);
+        if (dst.hasRemaining()) {
+            readRing.clear();
+            readRing.limit(dst.remaining());
+            dst.put(readRing);
+        }
+    }
+
+    @Override
+    public void push(Message message) {
+        pushBatch(Collections.singletonList(message));
+    }
+
+    // Delayed messages do not take room in the ring until they are due, so they are never rejected
+    @Override
+    public void push(Message message, long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            push(message);
+            return;
+        }
+        delayed.delay(message, delay, unit);
+        metrics.recordPush(1);
+    }
+
+    // A batch goes in whole or not at all
+    @Override
+    public void pushBatch(List<Message> messages) {
+        ByteBuffer[] bodies = new ByteBuffer[messages.size()];
+        long size = 0;
+        for (int i = 0; i < bodies.length; ++i) {
+            bodies[i] = bodyOf(messages.get(i));
+            if (headerSize + bodies[i].remaining() > capacity)
+                throw new IllegalArgumentException("Message of " + bodies[i].remaining() + " bytes larger than the queue");
+            size += headerSize + bodies[i].remaining();
+        }
+        pushLock.lock();
+        try {
+            long position = tail;
+            if (size > capacity - (position - head))
+                throw new IllegalStateException("Queue is full");
+            long pushTime = System.nanoTime();
+            for (int i = 0; i < bodies.length; ++i) {
+                int length = bodies[i].remaining();
+                writeHeader.clear();
+                writeHeader.putInt(messages.get(i).isBinary() ? length | Integer.MIN_VALUE : length).putLong(pushTime).flip();
+                put(position, writeHeader);
+                put(position + headerSize, bodies[i]);
+                position += headerSize + length;
+            }
+            // Publishes the records to the consumers
+            tail = position;
+        }
+        finally {
+            pushLock.unlock();
+        }
+        metrics.recordPush(messages.size());
+        if (messages.size() == 1)
+            waiters.signal();
+        else
+            waiters.signalAll();
+    }
+
+    // Must be called with the pullLock held
+    private Message read() {
+        long position = head;
+        if (position == tail)
+            return null;
+        readHeader.clear();
+        get(position, readHeader);
+        int header = readHeader.getInt(0);
+        long pushTime = readHeader.getLong(4);
+        int length = header & Integer.MAX_VALUE;
+        byte[] body = new byte[length];
+        get(position + headerSize, ByteBuffer.wrap(body));
+        // Gives the room back to the producers
+        head = position + headerSize + length;
+        Message message = header < 0 ? new Message(ByteBuffer.wrap(body))
+                : new Message(new String(body, StandardCharsets.UTF_8));
+        message.setPushTime(pushTime);
+        return message;
+    }
+
+    // The consumer gets a copy, the queue redelivers its own instance
+    private Message hide(Message message) {
+        metrics.recordPull(System.nanoTime() - message.getPushTime());
+        return inFlight.hide(message, Handle.pack(0, messageId.getAndIncrement(), 1), visibilityTimeout);
+    }
+
+    @Override
+    public Message pull() {
+        List<Message> messages = pull(1);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    @Override
+    public List<Message> pull(int max) {
+        List<Message> messages = new ArrayList<>(Math.min(max, 16));
+        Message message;
+        while (messages.size() < max && (message = redelivered.pollLast()) != null)
+            messages.add(message);
+        if (messages.size() < max && head != tail) {
+            pullLock.lock();
+            try {
+                while (messages.size() < max && (message = read()) != null)
+                    messages.add(message);
+            }
+            finally {
+                pullLock.unlock();
+            }
+        }
+        for (int i = 0; i < messages.size(); ++i)
+            messages.set(i, hide(messages.get(i)));
+        return messages;
+    }
+
+    @Override
+    public Message pull(long timeout, TimeUnit unit) {
+        return waiters.pull(this, timeout, unit);
+    }
+
+    @Override
+    public void delete(String handle) {
+        if (inFlight.delete(handle))
+            metrics.recordDelete();
+    }
+
+    @Override
+    public void deleteBatch(Collection<String> handles) {
+        for (String handle : handles)
+            delete(handle);
+    }
+
+    // Fails right away with an IllegalStateException if the ring is full, like push()
+    @Override
+    public CompletableFuture<Void> pushAsync(Message message) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            push(message);
+            future.complete(null);
+        }
+        catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    // The signaled pulls run on the scheduler thread, since they never wait
+    @Override
+    public CompletableFuture<Message> pullAsync(long timeout, TimeUnit unit) {
+        return waiters.pullAsync(this, timeout, unit, scheduler, scheduler);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String handle) {
+        delete(handle);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public boolean watch(Runnable watcher) {
+        waiters.watch(watcher);
+        return true;
+    }
+
+    @Override
+    public void unwatch(Runnable watcher) {
+        waiters.unwatch(watcher);
+    }
+
+    @Override
+    public QueueMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        inFlight.clear();
+        delayed.clear();
+        redelivered.clear();
+        pullLock.lock();
+        try {
+            head = tail;
+        }
+        finally {
+            pullLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package namespace.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Lock shared by the threads of this process and by the other processes, backed by a lock file.
+ * Threads first compete on a ReentrantLock, so only one of them at a time asks the OS for the FileLock.
+ * The OS releases a FileLock when its process dies, so a crash cannot leave a stale lock behind.
+ * A FileLock is held by the whole JVM, hence there is a single ProcessLock instance per lock file.
+ */
+
+public class ProcessLock {
+    private static Map<String, ProcessLock> locks = new ConcurrentHashMap<>();
+    private File file;
+    private ReentrantLock threadLock = new ReentrantLock();
+    private FileChannel channel;
+    private FileLock fileLock;
+
+    private ProcessLock(File file) {
+        this.file = file;
+    }
+
+    public static ProcessLock forFile(File file) {
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        }
+        catch (IOException e) {
+            path = file.getAbsolutePath();
+        }
+        ProcessLock lock = locks.get(path);
+        if (lock == null) {
+            locks.putIfAbsent(path, new ProcessLock(new File(path)));
+            lock = locks.get(path);
+        }
+        return lock;
+    }
+
+    public void lock() {
+        threadLock.lock();
+        if (threadLock.getHoldCount() > 1)
+            return;
+        // An interrupt would close the channel under the feet of the other threads, keep it for later
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (fileLock == null) {
+                try {
+                    if (channel == null || !channel.isOpen())
+                        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    fileLock = channel.lock();
+                    // The lock file may have been deleted with its queue, the others would then lock a new one
+                    if (!file.exists()) {
+                        fileLock = null;
+                        channel.close();
+                    }
+                }
+                catch (ClosedChannelException e) {
+                    interrupted |= Thread.interrupted();
+                }
+            }
+        }
+        catch (IOException e) {
+            threadLock.unlock();
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    public void unlock() {
+        if (threadLock.getHoldCount() == 1) {
+            try {
+                fileLock.release();
+            }
+            catch (IOException e) {
+                // Closing the channel releases the lock anyway
+                try { channel.close(); }
+                catch (IOException ignored) {}
+            }
+            fileLock = null;
+        }
+        threadLock.unlock();
+    }
+}
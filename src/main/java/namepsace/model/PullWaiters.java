@@ -0,0 +1,194 @@
+package namespace.model;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Consumers waiting for a queue to have messages, parked until signal() is called or their timeout expires.
+ * The producers only take the lock when somebody is actually waiting.
+ * A waiter counts itself before checking the queue one last time, so a message pushed meanwhile cannot be missed.
+ * Asynchronous waiters hold no thread: they are listed, and a signal hands one of them to an Executor to pull again.
+ * An asynchronous waiter that finds nothing lists itself again, and pulls once more if a signal came in between.
+ * Watchers do not pull: each one is called once, from the signaling thread, by the next signal, so they must not block.
+ */
+
+public class PullWaiters {
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition notEmpty = lock.newCondition();
+    private AtomicInteger waiting = new AtomicInteger(0);
+    // Counts the signals while somebody waits, so that an asynchronous waiter can tell it missed one
+    private AtomicLong signals = new AtomicLong(0);
+    private ConcurrentLinkedQueue<AsyncPull> asyncPulls = new ConcurrentLinkedQueue<>();
+    private ConcurrentLinkedQueue<Runnable> watchers = new ConcurrentLinkedQueue<>();
+
+    private static final int listedState = 0;
+    private static final int pullingState = 1;
+    private static final int doneState = 2;
+
+    // Also the Timeout of the pull, which completes it with null
+    private class AsyncPull extends VisibilityScheduler.Timeout {
+        private MessageQueue queue;
+        private Executor executor;
+        private long expiry;
+        private AtomicInteger state = new AtomicInteger(pullingState);
+        private CompletableFuture<Message> future = new CompletableFuture<>();
+        private Runnable pulling = new Runnable() {
+            @Override
+            public void run() {
+                pull();
+            }
+        };
+
+        public AsyncPull(MessageQueue queue, Executor executor, long timeout, TimeUnit unit) {
+            super(timeout, unit);
+            this.queue = queue;
+            this.executor = executor;
+            expiry = System.nanoTime() + unit.toNanos(timeout);
+        }
+
+        // A pull in progress completes the future itself, once it sees the expiry
+        @Override
+        public void run() {
+            if (state.compareAndSet(listedState, doneState)) {
+                asyncPulls.remove(this);
+                complete(null);
+            }
+        }
+
+        private void complete(Message message) {
+            waiting.decrementAndGet();
+            cancel();
+            future.complete(message);
+        }
+
+        // Called in the pulling state, and leaves it either done or listed
+        private void pull() {
+            while (true) {
+                long seen = signals.get();
+                Message message = queue.pull();
+                if (message != null || System.nanoTime() - expiry >= 0) {
+                    state.set(doneState);
+                    complete(message);
+                    return;
+                }
+                state.set(listedState);
+                asyncPulls.add(this);
+                if (signals.get() == seen && System.nanoTime() - expiry < 0)
+                    return;
+                // A signal or the Timeout may have missed us, unless somebody already took us back
+                if (!state.compareAndSet(listedState, pullingState))
+                    return;
+                asyncPulls.remove(this);
+            }
+        }
+
+        private boolean wake() {
+            if (!state.compareAndSet(listedState, pullingState))
+                return false;
+            executor.execute(pulling);
+            return true;
+        }
+    }
+
+    // All the watchers are called, since they do not take the message themselves
+    private void callWatchers() {
+        Runnable watcher;
+        while ((watcher = watchers.poll()) != null) {
+            waiting.decrementAndGet();
+            watcher.run();
+        }
+    }
+
+    public void signal() {
+        if (waiting.get() == 0)
+            return;
+        signals.incrementAndGet();
+        callWatchers();
+        AsyncPull asyncPull;
+        while ((asyncPull = asyncPulls.poll()) != null) {
+            if (asyncPull.wake())
+                break;
+        }
+        lock.lock();
+        try {
+            notEmpty.signal();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public void signalAll() {
+        if (waiting.get() == 0)
+            return;
+        signals.incrementAndGet();
+        callWatchers();
+        AsyncPull asyncPull;
+        while ((asyncPull = asyncPulls.poll()) != null)
+            asyncPull.wake();
+        lock.lock();
+        try {
+            notEmpty.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // The watcher counts as waiting until it is called or removed
+    public void watch(Runnable watcher) {
+        waiting.incrementAndGet();
+        watchers.add(watcher);
+    }
+
+    public void unwatch(Runnable watcher) {
+        if (watchers.remove(watcher))
+            waiting.decrementAndGet();
+    }
+
+    public boolean isWatched() {
+        return !watchers.isEmpty();
+    }
+
+    // Returns null if the timeout expires, or if the thread gets interrupted (its interrupt status is kept)
+    public Message pull(MessageQueue queue, long timeout, TimeUnit unit) {
+        long nanos = unit.toNanos(timeout);
+        Message message = queue.pull();
+        if (message != null || nanos <= 0)
+            return message;
+        waiting.incrementAndGet();
+        lock.lock();
+        try {
+            while ((message = queue.pull()) == null && nanos > 0)
+                nanos = notEmpty.awaitNanos(nanos);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            lock.unlock();
+            waiting.decrementAndGet();
+        }
+        return message;
+    }
+
+    // Completes with null if the timeout expires, from the scheduler thread
+    // Otherwise, completes from the calling thread or from the executor, which runs the pulls once signaled
+    public CompletableFuture<Message> pullAsync(MessageQueue queue, long timeout, TimeUnit unit,
+                                                VisibilityScheduler scheduler, Executor executor) {
+        Message message = queue.pull();
+        if (message != null || unit.toNanos(timeout) <= 0)
+            return CompletableFuture.completedFuture(message);
+        waiting.incrementAndGet();
+        AsyncPull asyncPull = new AsyncPull(queue, executor, timeout, unit);
+        scheduler.schedule(asyncPull);
+        asyncPull.pull();
+        return asyncPull.future;
+    }
+}
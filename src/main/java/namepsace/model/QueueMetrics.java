@@ -0,0 +1,129 @@
+package namespace.model;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Counters and latency histograms of a queue, as seen by this process.
+ * Recording only increments LongAdders and histogram buckets, it does not allocate.
+ * The depth and the in-flight count are derived from the counters:
+ * a message is visible once pushed or redelivered, then in flight once pulled, until deleted or redelivered.
+ * The duplicates dropped by the pushes are not counted as pushed.
+ */
+
+public class QueueMetrics implements QueueMetricsMXBean {
+    private LongAdder pushed = new LongAdder();
+    private LongAdder pulled = new LongAdder();
+    private LongAdder deleted = new LongAdder();
+    private LongAdder redelivered = new LongAdder();
+    private LongAdder duplicates = new LongAdder();
+    private LatencyHistogram pushToPullLatency = new LatencyHistogram();
+    private LatencyHistogram lockWait = new LatencyHistogram();
+
+    public void recordPush(int count) {
+        pushed.add(count);
+    }
+
+    public void recordPull(long pushToPullNanos) {
+        pulled.increment();
+        pushToPullLatency.record(pushToPullNanos);
+    }
+
+    public void recordDelete() {
+        deleted.increment();
+    }
+
+    public void recordRedelivery() {
+        redelivered.increment();
+    }
+
+    public void recordDuplicates(int count) {
+        duplicates.add(count);
+    }
+
+    public void recordLockWait(long nanos) {
+        lockWait.record(nanos);
+    }
+
+    public void add(QueueMetrics other) {
+        pushed.add(other.pushed.sum());
+        pulled.add(other.pulled.sum());
+        deleted.add(other.deleted.sum());
+        redelivered.add(other.redelivered.sum());
+        duplicates.add(other.duplicates.sum());
+        pushToPullLatency.add(other.pushToPullLatency);
+        lockWait.add(other.lockWait);
+    }
+
+    public LatencyHistogram getPushToPullLatency() {
+        return pushToPullLatency;
+    }
+
+    public LatencyHistogram getLockWait() {
+        return lockWait;
+    }
+
+    @Override
+    public long getPushCount() {
+        return pushed.sum();
+    }
+
+    @Override
+    public long getPullCount() {
+        return pulled.sum();
+    }
+
+    @Override
+    public long getDeleteCount() {
+        return deleted.sum();
+    }
+
+    @Override
+    public long getRedeliveryCount() {
+        return redelivered.sum();
+    }
+
+    @Override
+    public long getDuplicateCount() {
+        return duplicates.sum();
+    }
+
+    @Override
+    public long getDepth() {
+        return Math.max(0, pushed.sum() + redelivered.sum() - pulled.sum());
+    }
+
+    @Override
+    public long getInFlightCount() {
+        return Math.max(0, pulled.sum() - deleted.sum() - redelivered.sum());
+    }
+
+    @Override
+    public long getPushToPullLatencyP50() {
+        return pushToPullLatency.getPercentile(50);
+    }
+
+    @Override
+    public long getPushToPullLatencyP99() {
+        return pushToPullLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getPushToPullLatencyMax() {
+        return pushToPullLatency.getMax();
+    }
+
+    @Override
+    public long getLockWaitP50() {
+        return lockWait.getPercentile(50);
+    }
+
+    @Override
+    public long getLockWaitP99() {
+        return lockWait.getPercentile(99);
+    }
+
+    @Override
+    public long getLockWaitMax() {
+        return lockWait.getMax();
+    }
+}
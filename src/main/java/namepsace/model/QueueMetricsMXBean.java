@@ -0,0 +1,21 @@
+package namespace.model;
+
+/*
+ * Management interface of the queue metrics, latencies are in nanoseconds.
+ */
+
+public interface QueueMetricsMXBean {
+    long getPushCount();
+    long getPullCount();
+    long getDeleteCount();
+    long getRedeliveryCount();
+    long getDuplicateCount();
+    long getDepth();
+    long getInFlightCount();
+    long getPushToPullLatencyP50();
+    long getPushToPullLatencyP99();
+    long getPushToPullLatencyMax();
+    long getLockWaitP50();
+    long getLockWaitP99();
+    long getLockWaitMax();
+}
@@ -0,0 +1,235 @@
+package namespace.model;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Pulls from whichever of many queues have messages, without pulling the idle ones, for QueueService.pullAny().
+ * A queue is pulled once when it is registered, to learn whether it has messages.
+ * A queue found empty is left idle with a watcher, which makes it ready again the next time it signals messages,
+ * so the idle queues cost nothing until then, however many there are.
+ * The ready queues wait in a deque, in the order they became ready, and a queue that delivered goes back at its end:
+ * the queues with messages are served in turn, whichever of them has the most.
+ * A queue is pulled by a single caller at a time, and a signal coming in meanwhile makes it ready again once pulled.
+ * The queues that cannot be watched (SQS) are pulled again every pollInterval instead, while somebody waits for them.
+ * The deques are guarded by a lock, held for a few operations on them: the pulls happen outside of it.
+ * The callers waiting for a queue to become ready are all woken up, since they may not be waiting for the same queues.
+ */
+
+public class QueueSelector {
+    public static final long pollInterval = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int idleState = 0;
+    private static final int readyState = 1;
+    private static final int pullingState = 2;
+    // Signaled while being pulled
+    private static final int signaledState = 3;
+    private static final int removedState = 4;
+    private Map<String, Selected> selected = new ConcurrentHashMap<>();
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition changed = lock.newCondition();
+    private Deque<Selected> ready = new ArrayDeque<>();
+    // The queues that cannot be watched, in the order they are due to be pulled again
+    private Deque<Selected> polled = new ArrayDeque<>();
+
+    // Also the watcher of the queue
+    private class Selected implements Runnable {
+        private String queueId;
+        private MessageQueue queue;
+        private AtomicInteger state = new AtomicInteger(readyState);
+        private AtomicBoolean watched = new AtomicBoolean(false);
+        private boolean watchable = true;
+        private long pollTime;
+
+        private Selected(String queueId, MessageQueue queue) {
+            this.queueId = queueId;
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            watched.set(false);
+            if (state.compareAndSet(idleState, readyState))
+                makeReady(this);
+            else
+                state.compareAndSet(pullingState, signaledState);
+        }
+    }
+
+    public boolean isRegistered(String queueId) {
+        return selected.containsKey(queueId);
+    }
+
+    public void register(String queueId, MessageQueue queue) {
+        Selected added = new Selected(queueId, queue);
+        if (selected.putIfAbsent(queueId, added) == null)
+            makeReady(added);
+    }
+
+    public void unregister(String queueId) {
+        Selected removed = selected.remove(queueId);
+        if (removed == null)
+            return;
+        removed.state.set(removedState);
+        removed.queue.unwatch(removed);
+        lock.lock();
+        try {
+            ready.remove(removed);
+            polled.remove(removed);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        for (String queueId : selected.keySet())
+            unregister(queueId);
+    }
+
+    private void makeReady(Selected queue) {
+        lock.lock();
+        try {
+            if (queue.state.get() == removedState)
+                return;
+            ready.addLast(queue);
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // Must be called with the lock held, returns the nanoseconds until the next poll
+    private long pollDue(long now) {
+        Selected queue;
+        while ((queue = polled.peekFirst()) != null && now - queue.pollTime >= 0) {
+            polled.pollFirst();
+            if (queue.state.compareAndSet(idleState, readyState))
+                ready.addLast(queue);
+        }
+        return queue == null ? Long.MAX_VALUE : queue.pollTime - now;
+    }
+
+    // Takes the first ready queue among the given ones, skipping the ones already pulled by the caller
+    private Selected take(Set<String> queueIds, Map<String, List<Message>> pulled) {
+        lock.lock();
+        try {
+            pollDue(System.nanoTime());
+            Iterator<Selected> iterator = ready.iterator();
+            while (iterator.hasNext()) {
+                Selected queue = iterator.next();
+                if (queueIds.contains(queue.queueId) && !pulled.containsKey(queue.queueId)) {
+                    iterator.remove();
+                    return queue;
+                }
+            }
+            return null;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // The watcher is set before the pull, so that a message pushed right after it is not missed
+    private List<Message> pull(Selected queue, int max) {
+        // Unless it was removed since taken
+        if (!queue.state.compareAndSet(readyState, pullingState))
+            return Collections.emptyList();
+        if (queue.watchable && queue.watched.compareAndSet(false, true) && !queue.queue.watch(queue)) {
+            queue.watchable = false;
+            queue.watched.set(false);
+        }
+        List<Message> messages = Collections.emptyList();
+        try {
+            messages = queue.queue.pull(max);
+        }
+        finally {
+            release(queue, !messages.isEmpty());
+        }
+        return messages;
+    }
+
+    // A queue that delivered may have more, one that did not stays idle, unless it was signaled during the pull
+    private void release(Selected queue, boolean delivered) {
+        int state = delivered ? readyState : idleState;
+        if (!queue.state.compareAndSet(pullingState, state)) {
+            // Unless it was removed
+            if (!queue.state.compareAndSet(signaledState, readyState))
+                return;
+            state = readyState;
+        }
+        if (state == readyState) {
+            makeReady(queue);
+            return;
+        }
+        if (queue.watchable)
+            return;
+        lock.lock();
+        try {
+            if (queue.state.get() == removedState)
+                return;
+            queue.pollTime = System.nanoTime() + pollInterval;
+            polled.addLast(queue);
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // Pulls up to max messages from the ready queues among the given ones, each at most once,
+    // waiting for one of them to become ready if none is. The messages are listed by queue ID, in the order of the pulls.
+    // Returns what was pulled so far if the timeout expires, or if the thread gets interrupted (its interrupt status is kept)
+    public Map<String, List<Message>> pull(Set<String> queueIds, int max, long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Map<String, List<Message>> pulled = new LinkedHashMap<>();
+        int count = 0;
+        while (true) {
+            Selected queue;
+            while (count < max && (queue = take(queueIds, pulled)) != null) {
+                List<Message> messages = pull(queue, max - count);
+                if (!messages.isEmpty()) {
+                    pulled.put(queue.queueId, messages);
+                    count += messages.size();
+                }
+            }
+            long remaining = deadline - System.nanoTime();
+            if (count > 0 || remaining <= 0 || max <= 0)
+                return pulled;
+            lock.lock();
+            try {
+                long untilPoll = pollDue(System.nanoTime());
+                if (!hasReady(queueIds))
+                    changed.awaitNanos(Math.min(remaining, untilPoll));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return pulled;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Must be called with the lock held
+    private boolean hasReady(Set<String> queueIds) {
+        for (Selected queue : ready) {
+            if (queueIds.contains(queue.queueId))
+                return true;
+        }
+        return false;
+    }
+}
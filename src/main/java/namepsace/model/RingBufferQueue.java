@@ -0,0 +1,292 @@
+package namespace.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/*
+ * Bounded, lock-free version of the MessageQueue, for many producers and many consumers.
+ * The messages sit in a preallocated ring of slots, each with its own sequence telling whether it is ready to be written or read.
+ * Producers claim a slot by moving the tail with a CAS, then publish it with its sequence, and consumers do the same with the head.
+ * The head and the tail are padded, so that the producers and the consumers do not share a cache line.
+ * When the ring is full, push() waits for room, and offer() either fails right away or after a timeout.
+ * Consumers and blocked producers wait with the WaitStrategy of the queue.
+ * The asynchronous operations hold no thread while waiting: they try again on the ticks of the VisibilityScheduler.
+ * The redelivered messages go first, from a side deque, so the VisibilityScheduler never waits for room.
+ * Delayed messages join that deque once due, and take no slot of the ring meanwhile.
+ * Handles are given on pull, so a message gets a new one, on its own copy, each time it is delivered.
+ * The watchers are called by the pushes, so a push only checks that nobody watches when that is the case.
+ */
+
+public class RingBufferQueue implements MessageQueue {
+    private Message[] slots;
+    private AtomicLongArray sequences;
+    private int mask;
+    private Sequence head = new Sequence();
+    private Sequence tail = new Sequence();
+    private WaitStrategy waitStrategy;
+    private Deque<Message> redelivered = new ConcurrentLinkedDeque<>();
+    private VisibilityScheduler scheduler;
+    private InFlightMessages inFlight;
+    private DelayedMessages delayed;
+    // Only the watchers wait on it, the pulls wait with the WaitStrategy
+    private PullWaiters waiters = new PullWaiters();
+    private QueueMetrics metrics = new QueueMetrics();
+    private int visibilityTimeout = 10;
+    private AtomicLong messageId = new AtomicLong(0);
+
+    // Padding on both sides of the value, in a class hierarchy since the JVM does not reorder fields across classes
+    static class LeftPadding {
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    static class SequenceValue extends LeftPadding {
+        volatile long value;
+    }
+
+    static class Sequence extends SequenceValue {
+        private static final AtomicLongFieldUpdater<SequenceValue> updater =
+                AtomicLongFieldUpdater.newUpdater(SequenceValue.class, "value");
+        long p9, p10, p11, p12, p13, p14, p15;
+
+        boolean compareAndSet(long expected, long updated) {
+            return updater.compareAndSet(this, expected, updated);
+        }
+    }
+
+    // The capacity is rounded up to a power of two
+    public RingBufferQueue(VisibilityScheduler scheduler, int capacity, WaitStrategy waitStrategy) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        slots = new Message[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i)
+            sequences.set(i, i);
+        mask = size - 1;
+        this.scheduler = scheduler;
+        inFlight = new InFlightMessages(scheduler) {
+            @Override
+            protected void redeliver(Message message, long handle) {
+                message.setPushTime(System.nanoTime());
+                redelivered.addLast(message);
+                metrics.recordRedelivery();
+                waiters.signal();
+            }
+        };
+        delayed = new DelayedMessages(scheduler) {
+            @Override
+            protected void promote(List<Message> messages) {
+                long now = System.nanoTime();
+                for (Message message : messages) {
+                    message.setPushTime(now);
+                    redelivered.addFirst(message);
+                }
+                waiters.signalAll();
+            }
+        };
+        this.waitStrategy = waitStrategy;
+    }
+
+    @Override
+    public void setVisibilityTimeout(int visibilityTimeout) {
+        this.visibilityTimeout = visibilityTimeout;
+    }
+
+    // Fails fast when the ring is full
+    public boolean offer(Message message) {
+        message.setPushTime(System.nanoTime());
+        long position;
+        int index;
+        while (true) {
+            position = tail.value;
+            index = (int) position & mask;
+            long available = sequences.get(index) - position;
+            // The slot still holds the message from the previous lap
+            if (available < 0)
+                return false;
+            if (available == 0 && tail.compareAndSet(position, position + 1))
+                break;
+        }
+        slots[index] = message;
+        sequences.lazySet(index, position + 1);
+        metrics.recordPush(1);
+        waiters.signal();
+        return true;
+    }
+
+    // Returns false if the ring stays full until the timeout, or if the thread gets interrupted (its interrupt status is kept)
+    public boolean offer(Message message, long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int round = 0;
+        while (!offer(message)) {
+            if (System.nanoTime() - deadline >= 0 || Thread.currentThread().isInterrupted())
+                return false;
+            waitStrategy.idle(round++);
+        }
+        return true;
+    }
+
+    // Waits for room when the ring is full
+    @Override
+    public void push(Message message) {
+        if (!offer(message, Long.MAX_VALUE, TimeUnit.NANOSECONDS))
+            throw new IllegalStateException("Interrupted while waiting for room in the queue");
+    }
+
+    // Never waits, even when the ring is full
+    @Override
+    public void push(Message message, long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            push(message);
+            return;
+        }
+        delayed.delay(message, delay, unit);
+        metrics.recordPush(1);
+    }
+
+    @Override
+    public void pushBatch(List<Message> messages) {
+        for (Message message : messages)
+            push(message);
+    }
+
+    private Message poll() {
+        Message message = redelivered.pollLast();
+        if (message != null)
+            return message;
+        long position;
+        int index;
+        while (true) {
+            position = head.value;
+            index = (int) position & mask;
+            long available = sequences.get(index) - (position + 1);
+            // The slot has not been published yet
+            if (available < 0)
+                return null;
+            if (available == 0 && head.compareAndSet(position, position + 1))
+                break;
+        }
+        message = slots[index];
+        slots[index] = null;
+        // Hands the slot over to the producers of the next lap
+        sequences.lazySet(index, position + mask + 1);
+        return message;
+    }
+
+    // The consumer gets a copy, the queue redelivers its own instance
+    private Message hide(Message message) {
+        metrics.recordPull(System.nanoTime() - message.getPushTime());
+        return inFlight.hide(message, Handle.pack(0, messageId.getAndIncrement(), 1), visibilityTimeout);
+    }
+
+    @Override
+    public Message pull() {
+        Message message = poll();
+        return message == null ? null : hide(message);
+    }
+
+    @Override
+    public List<Message> pull(int max) {
+        List<Message> messages = new ArrayList<>(Math.min(max, 16));
+        Message message;
+        while (messages.size() < max && (message = pull()) != null)
+            messages.add(message);
+        return messages;
+    }
+
+    // Returns null if the timeout expires, or if the thread gets interrupted (its interrupt status is kept)
+    @Override
+    public Message pull(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int round = 0;
+        Message message;
+        while ((message = pull()) == null) {
+            if (System.nanoTime() - deadline >= 0 || Thread.currentThread().isInterrupted())
+                return null;
+            waitStrategy.idle(round++);
+        }
+        return message;
+    }
+
+    @Override
+    public void delete(String handle) {
+        if (inFlight.delete(handle))
+            metrics.recordDelete();
+    }
+
+    @Override
+    public void deleteBatch(Collection<String> handles) {
+        for (String handle : handles)
+            delete(handle);
+    }
+
+    // Offers again on the ticks of the scheduler while the ring is full, instead of waiting
+    @Override
+    public CompletableFuture<Void> pushAsync(final Message message) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        new Runnable() {
+            @Override
+            public void run() {
+                if (offer(message))
+                    future.complete(null);
+                else
+                    scheduler.schedule(new VisibilityScheduler.Timeout(this, 1, TimeUnit.MILLISECONDS));
+            }
+        }.run();
+        return future;
+    }
+
+    // Polls again on the ticks of the scheduler while the ring is empty, whatever the WaitStrategy
+    @Override
+    public CompletableFuture<Message> pullAsync(long timeout, TimeUnit unit) {
+        final CompletableFuture<Message> future = new CompletableFuture<>();
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        new Runnable() {
+            @Override
+            public void run() {
+                Message message = pull();
+                if (message != null || System.nanoTime() - deadline >= 0)
+                    future.complete(message);
+                else
+                    scheduler.schedule(new VisibilityScheduler.Timeout(this, 1, TimeUnit.MILLISECONDS));
+            }
+        }.run();
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String handle) {
+        delete(handle);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public boolean watch(Runnable watcher) {
+        waiters.watch(watcher);
+        return true;
+    }
+
+    @Override
+    public void unwatch(Runnable watcher) {
+        waiters.unwatch(watcher);
+    }
+
+    @Override
+    public QueueMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        inFlight.clear();
+        delayed.clear();
+        redelivered.clear();
+        while (poll() != null);
+    }
+}
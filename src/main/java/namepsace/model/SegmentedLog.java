@@ -0,0 +1,354 @@
+package namespace.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/*
+ * Append-only log made of segment files, used as the storage engine of the FileQueue.
+ * Each record is an int length, then the CRC32 of the length and the data, then that many bytes of data,
+ * so a record can contain anything, and a record torn by a crash, or a tail of zeros, is told from a whole one.
+ * The first append to a segment, and the first one after appends from other processes, check the records past
+ * the last one known to be whole, and truncate the segment back to it: appends are serialized, so what does not make
+ * a whole record there is the torn tail of a crash. Until then the readers stop before it, as before a record being written.
+ * Records are appended as several buffers, with a gathering write: their parts are never copied together.
+ * Segments are numbered, a new one is started once the last one exceeds segmentSize.
+ * The consumer read position (segment number, position in segment) is persisted in the "offset" file,
+ * so that it is shared with the other processes using the same directory.
+ * Reads only move it once commit() is called, so that the readers can record what they read before.
+ * Records can also be read again from their location, until deleteBefore() deletes their segment in the background.
+ * Appends are left to the OS until force() is called, a segment being forced anyway once we start the next one,
+ * so that force() only has to deal with the last segment.
+ * This class is not thread safe: callers have to serialize the append() calls and the read() calls,
+ * but appends and reads only touch different ends of the log and can run concurrently.
+ */
+
+public class SegmentedLog {
+    public static final long defaultSegmentSize = 16 * 1024 * 1024;
+    private static final String segmentSuffix = ".log";
+    private static final String offsetName = "offset";
+    // The length of the data, then its checksum
+    private static final int headerSize = 4 + 4;
+    private File directory;
+    private long segmentSize;
+    private Executor cleaner;
+    private FileChannel offsetChannel;
+    private ByteBuffer offsetBuffer = ByteBuffer.allocate(16);
+    private FileChannel appendChannel;
+    private long appendSegment = -1;
+    // End of the last record of the append segment known to be whole
+    private long appendEnd = 0;
+    private boolean unforced = false;
+    private FileChannel readChannel;
+    private long readSegment = -1;
+    private long[] committedOffset;
+    private long[] uncommittedOffset;
+    private long deletedBefore = 0;
+
+    // A record, with its location in the log
+    public static class Record {
+        private long segment;
+        private long position;
+        private byte[] data;
+
+        public Record(long segment, long position, byte[] data) {
+            this.segment = segment;
+            this.position = position;
+            this.data = data;
+        }
+
+        public long getSegment() {
+            return segment;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    public SegmentedLog(File directory, long segmentSize, Executor cleaner) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.cleaner = cleaner;
+        directory.mkdirs();
+        offsetChannel = FileChannel.open(new File(directory, offsetName).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    // Whether the file of that name, found in the directory of a log, is one of its segments or its offset
+    public static boolean isLogFile(String name) {
+        return name.equals(offsetName) || name.matches("[0-9]{20}\\" + segmentSuffix);
+    }
+
+    private File segmentFile(long segment) {
+        return new File(directory, String.format("%020d%s", segment, segmentSuffix));
+    }
+
+    private long firstSegment() {
+        long first = Long.MAX_VALUE;
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(segmentSuffix))
+                    first = Math.min(first, Long.parseLong(name.substring(0, name.length() - segmentSuffix.length())));
+            }
+        }
+        return first == Long.MAX_VALUE ? 0 : first;
+    }
+
+    private void openAppendSegment(long segment) throws IOException {
+        if (appendChannel != null) {
+            if (unforced)
+                appendChannel.force(false);
+            unforced = false;
+            appendChannel.close();
+        }
+        appendSegment = segment;
+        appendEnd = 0;
+        appendChannel = FileChannel.open(segmentFile(segment).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // Must be called with the appends serialized, since the records being written would look torn
+    private void truncateTornTail() throws IOException {
+        long size = appendChannel.size();
+        if (size == appendEnd)
+            return;
+        long position = appendEnd;
+        // The append channel cannot read
+        try (FileChannel channel = FileChannel.open(segmentFile(appendSegment).toPath(), StandardOpenOption.READ)) {
+            byte[] record;
+            while (position < size && (record = readRecord(channel, position, size)) != null)
+                position += headerSize + record.length;
+        }
+        if (position < size)
+            appendChannel.truncate(position);
+        appendEnd = position;
+    }
+
+    private void prepareAppend() throws IOException {
+        // Other processes may have started new segments since our last append
+        long segment = appendSegment < 0 ? firstSegment() : appendSegment;
+        while (segmentFile(segment + 1).exists())
+            ++segment;
+        if (segment != appendSegment || appendChannel == null)
+            openAppendSegment(segment);
+        truncateTornTail();
+        if (appendChannel.size() >= segmentSize)
+            openAppendSegment(appendSegment + 1);
+    }
+
+    // All the records are written with a single gathering write, each record being made of the remaining bytes of its parts
+    public void append(List<ByteBuffer[]> records) throws IOException {
+        prepareAppend();
+        int partCount = 0;
+        for (ByteBuffer[] parts : records)
+            partCount += parts.length;
+        ByteBuffer[] buffers = new ByteBuffer[records.size() + partCount];
+        long remaining = 0;
+        int i = 0;
+        for (ByteBuffer[] parts : records) {
+            int length = 0;
+            for (ByteBuffer part : parts)
+                length += part.remaining();
+            ByteBuffer header = ByteBuffer.allocate(headerSize).putInt(0, length);
+            CRC32 checksum = new CRC32();
+            checksum.update(header.array(), 0, 4);
+            for (ByteBuffer part : parts)
+                checksum.update(part.duplicate());
+            header.putInt(4, (int) checksum.getValue());
+            buffers[i++] = header;
+            for (ByteBuffer part : parts)
+                buffers[i++] = part;
+            remaining += headerSize + length;
+        }
+        long written = remaining;
+        while (remaining > 0)
+            remaining -= appendChannel.write(buffers);
+        appendEnd += written;
+        unforced = true;
+    }
+
+    // Makes the appends so far durable, must not run concurrently with append()
+    public void force() throws IOException {
+        if (unforced) {
+            appendChannel.force(false);
+            unforced = false;
+        }
+    }
+
+    private long[] readOffset() throws IOException {
+        offsetBuffer.clear();
+        while (offsetBuffer.hasRemaining()) {
+            // The offset file is empty until the first read
+            if (offsetChannel.read(offsetBuffer, offsetBuffer.position()) < 0)
+                return new long[] { firstSegment(), 0 };
+        }
+        offsetBuffer.flip();
+        return new long[] { offsetBuffer.getLong(), offsetBuffer.getLong() };
+    }
+
+    private void writeOffset(long segment, long position) throws IOException {
+        offsetBuffer.clear();
+        offsetBuffer.putLong(segment).putLong(position).flip();
+        while (offsetBuffer.hasRemaining())
+            offsetChannel.write(offsetBuffer, offsetBuffer.position());
+    }
+
+    private boolean openReadSegment(long segment) throws IOException {
+        if (segment == readSegment && readChannel != null)
+            return true;
+        if (readChannel != null)
+            readChannel.close();
+        readChannel = null;
+        readSegment = segment;
+        File file = segmentFile(segment);
+        if (!file.exists())
+            return false;
+        readChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        return true;
+    }
+
+    // Returns false at the end of the file
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    // Returns the data of the record at the position, or null if the file of the given size does not hold it whole
+    private static byte[] readRecord(FileChannel channel, long position, long size) throws IOException {
+        if (position + headerSize > size)
+            return null;
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        if (!readFully(channel, header, position))
+            return null;
+        int length = header.getInt(0);
+        if (length < 0 || position + headerSize + length > size)
+            return null;
+        ByteBuffer data = ByteBuffer.allocate(length);
+        if (!readFully(channel, data, position + headerSize))
+            return null;
+        CRC32 checksum = new CRC32();
+        checksum.update(header.array(), 0, 4);
+        checksum.update(data.array(), 0, length);
+        return (int) checksum.getValue() == header.getInt(4) ? data.array() : null;
+    }
+
+    public Record read() throws IOException {
+        List<Record> records = read(1);
+        return records.isEmpty() ? null : records.get(0);
+    }
+
+    // Reads up to max records, from the offset left by the last commit()
+    public List<Record> read(int max) throws IOException {
+        List<Record> records = new ArrayList<>();
+        long[] offset = readOffset();
+        long segment = offset[0];
+        long position = offset[1];
+        while (records.size() < max) {
+            if (!openReadSegment(segment))
+                break;
+            long size = readChannel.size();
+            if (position + headerSize <= size) {
+                byte[] record = readRecord(readChannel, position, size);
+                // A record that is not completely written yet, or torn until the next append truncates it, is not readable
+                if (record == null)
+                    break;
+                records.add(new Record(segment, position, record));
+                position += headerSize + record.length;
+            }
+            else if (position == size && segmentFile(segment + 1).exists() && position == readChannel.size()) {
+                // The writers only start a new segment once they are done with the previous one,
+                // so the size has to be checked again after seeing the next segment
+                ++segment;
+                position = 0;
+            }
+            else
+                break;
+        }
+        committedOffset = offset;
+        uncommittedOffset = new long[] { segment, position };
+        return records;
+    }
+
+    // Moves the read offset past the records of the last read(), with a single write
+    public void commit() throws IOException {
+        if (uncommittedOffset != null && (uncommittedOffset[0] != committedOffset[0] || uncommittedOffset[1] != committedOffset[1]))
+            writeOffset(uncommittedOffset[0], uncommittedOffset[1]);
+        uncommittedOffset = null;
+    }
+
+    // The segment of the read offset, must be serialized with the reads
+    public long readSegment() throws IOException {
+        return readOffset()[0];
+    }
+
+    // Returns null if the segment of the record was deleted, or the record does not match its checksum
+    public byte[] readAt(long segment, long position) throws IOException {
+        File file = segmentFile(segment);
+        if (!file.exists())
+            return null;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return readRecord(channel, position, channel.size());
+        }
+    }
+
+    // Deletes in the background the segments before the given one, which nobody needs anymore
+    public void deleteBefore(long segment) {
+        if (segment <= deletedBefore)
+            return;
+        deletedBefore = segment;
+        String[] names = directory.list();
+        if (names == null)
+            return;
+        for (String name : names) {
+            if (name.endsWith(segmentSuffix)
+                    && Long.parseLong(name.substring(0, name.length() - segmentSuffix.length())) < segment)
+                deleteInBackground(Long.parseLong(name.substring(0, name.length() - segmentSuffix.length())));
+        }
+    }
+
+    private void deleteInBackground(final long segment) {
+        final File file = segmentFile(segment);
+        cleaner.execute(new Runnable() {
+            @Override
+            public void run() {
+                file.delete();
+            }
+        });
+    }
+
+    public void close() {
+        try {
+            offsetChannel.close();
+            if (appendChannel != null)
+                appendChannel.close();
+            if (readChannel != null)
+                readChannel.close();
+        }
+        catch (IOException e) {}
+    }
+
+    public void delete() {
+        close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+}
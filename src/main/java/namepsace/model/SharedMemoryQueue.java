@@ -0,0 +1,501 @@
+package namespace.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Version of the MessageQueue shared by the processes of a host through a memory-mapped file, for low latency IPC.
+ * The file holds a header and a ring of fixed size slots, claimed and published with their sequences as in RingBufferQueue.
+ * The head, the tail and the sequences live in the mapped memory, and are updated with the atomic operations of NativeMemory,
+ * so the processes coordinate without locks nor system calls.
+ * A slot is only handed over to the producers of the next lap once its message is deleted, its lease word holding until then
+ * the handle its message was delivered with, so a consumer dying with a message leaves a lease that expires.
+ * A producer dying between the claim of the tail and the publication of its slot does block the head though,
+ * and the queue has to be deleted then.
+ * Bodies must fit in a slot, message groups and deduplication IDs are ignored.
+ */
+
+public class SharedMemoryQueue implements MessageQueue {
+    private static final long magic = 0x53484d5155455545L;
+    private static final int headerSize = 256;
+    private static final int capacityOffset = 8;
+    private static final int slotSizeOffset = 12;
+    // The counters updated by different parties are on different cache lines
+    private static final int tailOffset = 64;
+    private static final int headOffset = 128;
+    private static final int expiredOffset = 192;
+    private static final int sequenceField = 0;
+    private static final int leaseField = 8;
+    private static final int deadlineField = 16;
+    private static final int dueField = 24;
+    private static final int lengthField = 32;
+    private static final int flagsField = 36;
+    // System.nanoTime() is the monotonic clock of the host on Linux, the same for all the processes
+    private static final int pushTimeField = 40;
+    private static final int slotHeaderSize = 48;
+    private static final int binaryFlag = 1;
+    // The origin of the handle in the lease word tells the state of the lease, next to which the deadline is kept,
+    // in milliseconds since the epoch: whoever changes the lease word first with a CAS wins,
+    // delete() freeing the slot and the sweep marking its message expired
+    private static final int leasedOrigin = 0;
+    private static final int delayedOrigin = 1;
+    private static final int expiredOrigin = 2;
+    // Published and not claimed yet
+    private static final int freeOrigin = 3;
+    private static final long sweepPeriod = 1000;
+    private File file;
+    private File lockFile;
+    private MappedByteBuffer buffer;
+    private long address;
+    private int capacity;
+    private int mask;
+    private int slotSize;
+    private WaitStrategy waitStrategy;
+    private VisibilityScheduler scheduler;
+    private VisibilityScheduler.Timeout sweepTimeout;
+    private volatile long nextSweep = Long.MAX_VALUE;
+    private volatile boolean closed = false;
+    // Where the last expired message was found, a hint shared by the threads without synchronization
+    private int scanStart = 0;
+    // Only the watchers wait on it, the pulls wait with the WaitStrategy
+    private PullWaiters waiters = new PullWaiters();
+    private AtomicBoolean watching = new AtomicBoolean(false);
+    private Runnable checking = new Runnable() {
+        @Override
+        public void run() {
+            if (readable())
+                waiters.signalAll();
+            if (!closed && waiters.isWatched()) {
+                scheduler.schedule(new VisibilityScheduler.Timeout(this, 1, TimeUnit.MILLISECONDS));
+                return;
+            }
+            watching.set(false);
+            // A watcher added before the flag went down did not start the checks
+            if (!closed && waiters.isWatched() && watching.compareAndSet(false, true))
+                scheduler.schedule(new VisibilityScheduler.Timeout(this, 1, TimeUnit.MILLISECONDS));
+        }
+    };
+    private QueueMetrics metrics = new QueueMetrics();
+    private int visibilityTimeout = 10;
+
+    // The capacity is rounded up to a power of two, and the slot size, which includes a header of 48 bytes, to a multiple of 8
+    // They are the ones of the process that created the file, under a ProcessLock only taken here
+    public SharedMemoryQueue(File file, int capacity, int slotSize, VisibilityScheduler scheduler, WaitStrategy waitStrategy) {
+        this.file = file;
+        this.scheduler = scheduler;
+        this.waitStrategy = waitStrategy;
+        lockFile = new File(file.getPath() + ".lock");
+        ProcessLock lock = ProcessLock.forFile(lockFile);
+        lock.lock();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Unsafe writes in the native order
+            ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.nativeOrder());
+            boolean initialized = channel.read(header, 0) == header.capacity() && header.getLong(0) == magic;
+            if (initialized) {
+                capacity = header.getInt(capacityOffset);
+                slotSize = header.getInt(slotSizeOffset);
+            }
+            else {
+                capacity = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+                slotSize = (Math.max(slotSize, slotHeaderSize + 8) + 7) & ~7;
+            }
+            if (headerSize + (long) capacity * slotSize > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("The ring takes more than 2GB");
+            this.capacity = capacity;
+            this.slotSize = slotSize;
+            mask = capacity - 1;
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerSize + (long) capacity * slotSize);
+            address = NativeMemory.address(buffer);
+            if (!initialized) {
+                for (int i = 0; i < capacity; ++i)
+                    NativeMemory.putLong(slotAddress(i) + sequenceField, i);
+                NativeMemory.putInt(address + capacityOffset, capacity);
+                NativeMemory.putInt(address + slotSizeOffset, slotSize);
+                NativeMemory.putLongVolatile(address, magic);
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            lock.unlock();
+        }
+        scheduleSweep(System.currentTimeMillis() + sweepPeriod);
+    }
+
+    @Override
+    public void setVisibilityTimeout(int visibilityTimeout) {
+        this.visibilityTimeout = visibilityTimeout;
+    }
+
+    private long slotAddress(long position) {
+        return address + headerSize + (long) ((int) position & mask) * slotSize;
+    }
+
+    private long getVolatile(long fieldAddress) {
+        return NativeMemory.getLongVolatile(fieldAddress);
+    }
+
+    private boolean compareAndSet(long fieldAddress, long expected, long updated) {
+        return NativeMemory.compareAndSwapLong(fieldAddress, expected, updated);
+    }
+
+    // Fails fast when the ring is full, the due time is in milliseconds since the epoch
+    private boolean offer(Message message, long due) {
+        ByteBuffer body = message.getBinaryBody();
+        if (body.remaining() > slotSize - slotHeaderSize)
+            throw new IllegalArgumentException("The body takes more than the " + (slotSize - slotHeaderSize) + " bytes of a slot");
+        long position;
+        long slot;
+        while (true) {
+            position = getVolatile(address + tailOffset);
+            slot = slotAddress(position);
+            long available = getVolatile(slot + sequenceField) - position;
+            // The slot still holds a message from the previous lap
+            if (available < 0)
+                return false;
+            if (available == 0 && compareAndSet(address + tailOffset, position, position + 1))
+                break;
+        }
+        NativeMemory.putLong(slot + dueField, due);
+        NativeMemory.putLong(slot + pushTimeField, System.nanoTime());
+        NativeMemory.putInt(slot + lengthField, body.remaining());
+        NativeMemory.putInt(slot + flagsField, message.isBinary() ? binaryFlag : 0);
+        ByteBuffer view = buffer.duplicate();
+        view.position((int) (slot - address) + slotHeaderSize);
+        view.put(body);
+        NativeMemory.putLong(slot + leaseField, Handle.pack(freeOrigin, position, 0));
+        NativeMemory.putOrderedLong(slot + sequenceField, position + 1);
+        metrics.recordPush(1);
+        waiters.signal();
+        return true;
+    }
+
+    public boolean offer(Message message) {
+        return offer(message, System.currentTimeMillis());
+    }
+
+    // Returns false if the ring stays full until the timeout, or if the thread gets interrupted (its interrupt status is kept)
+    public boolean offer(Message message, long timeout, TimeUnit unit) {
+        return offer(message, 0, timeout, unit);
+    }
+
+    private boolean offer(Message message, long delay, long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int round = 0;
+        while (!offer(message, System.currentTimeMillis() + delay)) {
+            if (System.nanoTime() - deadline >= 0 || Thread.currentThread().isInterrupted())
+                return false;
+            waitStrategy.idle(round++);
+        }
+        return true;
+    }
+
+    // Waits for room when the ring is full
+    @Override
+    public void push(Message message) {
+        if (!offer(message, Long.MAX_VALUE, TimeUnit.NANOSECONDS))
+            throw new IllegalStateException("Interrupted while waiting for room in the queue");
+    }
+
+    // Waits for room as well, since the message takes its slot right away
+    // It is leased until due by the consumer that reaches it, then expires like the others
+    @Override
+    public void push(Message message, long delay, TimeUnit unit) {
+        if (!offer(message, Math.max(unit.toMillis(delay), 0), Long.MAX_VALUE, TimeUnit.NANOSECONDS))
+            throw new IllegalStateException("Interrupted while waiting for room in the queue");
+    }
+
+    @Override
+    public void pushBatch(List<Message> messages) {
+        for (Message message : messages)
+            push(message);
+    }
+
+    private Message read(long slot, long handle) {
+        byte[] body = new byte[NativeMemory.getInt(slot + lengthField)];
+        ByteBuffer view = buffer.duplicate();
+        view.position((int) (slot - address) + slotHeaderSize);
+        view.get(body);
+        Message message;
+        if ((NativeMemory.getInt(slot + flagsField) & binaryFlag) != 0)
+            message = new Message(ByteBuffer.wrap(body));
+        else
+            message = new Message(new String(body, StandardCharsets.UTF_8));
+        message.setPushTime(NativeMemory.getLong(slot + pushTimeField));
+        message.setPackedHandle(handle);
+        return message;
+    }
+
+    // Claims the head by leasing it with a CAS from the free lease word published by the producer,
+    // the delayed messages that are not due yet without delivering them,
+    // then advances it, unless another consumer did it on seeing the lease
+    // The deadline is set with a CAS before the lease, so that the sweep never sees the lease without it,
+    // and a thread that read the free lease word long ago cannot overwrite the deadline of a later lease
+    private Message pollHead(long now, long deadline) {
+        while (true) {
+            long position = getVolatile(address + headOffset);
+            long slot = slotAddress(position);
+            long available = getVolatile(slot + sequenceField) - (position + 1);
+            // The slot has not been published yet
+            if (available < 0)
+                return null;
+            // Delivered and deleted already, by a consumer that died before advancing the head, or the head moved on
+            if (available > 0) {
+                compareAndSet(address + headOffset, position, position + 1);
+                continue;
+            }
+            long free = Handle.pack(freeOrigin, position, 0);
+            long lease = getVolatile(slot + leaseField);
+            if (lease != free) {
+                // Leased by another consumer, which may have died before advancing the head
+                if (lease != 0 && Handle.sequence(lease) == Handle.sequence(free))
+                    compareAndSet(address + headOffset, position, position + 1);
+                continue;
+            }
+            long due = NativeMemory.getLong(slot + dueField);
+            boolean delayed = due > now;
+            long handle = delayed ? Handle.pack(delayedOrigin, position, 0) : Handle.pack(leasedOrigin, position, 1);
+            long previous = getVolatile(slot + deadlineField);
+            if (!compareAndSet(slot + deadlineField, previous, delayed ? due : deadline))
+                continue;
+            Message message = delayed ? null : read(slot, handle);
+            if (!compareAndSet(slot + leaseField, free, handle))
+                continue;
+            compareAndSet(address + headOffset, position, position + 1);
+            if (!delayed)
+                return message;
+            scheduleSweep(due);
+        }
+    }
+
+    // The deadline is written before the CAS, so that the sweep never sees the new lease with the expired deadline
+    // A thread losing the race may overwrite it with its own, which is just as late
+    private Message pollExpired(long deadline) {
+        if (getVolatile(address + expiredOffset) <= 0)
+            return null;
+        int start = scanStart;
+        for (int i = 0; i < capacity; ++i) {
+            int index = (start + i) & mask;
+            long slot = slotAddress(index);
+            long lease = getVolatile(slot + leaseField);
+            if (lease == 0 || Handle.origin(lease) != expiredOrigin)
+                continue;
+            long handle = Handle.pack(leasedOrigin, Handle.sequence(lease), Handle.receiveCount(lease) + 1);
+            Message message = read(slot, handle);
+            NativeMemory.putLong(slot + deadlineField, deadline);
+            if (compareAndSet(slot + leaseField, lease, handle)) {
+                NativeMemory.getAndAddLong(address + expiredOffset, -1);
+                scanStart = index + 1;
+                return message;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Message pull() {
+        long now = System.currentTimeMillis();
+        long deadline = now + TimeUnit.SECONDS.toMillis(visibilityTimeout);
+        Message message = pollExpired(deadline);
+        if (message == null)
+            message = pollHead(now, deadline);
+        if (message == null)
+            return null;
+        metrics.recordPull(Math.max(System.nanoTime() - message.getPushTime(), 0));
+        scheduleSweep(deadline);
+        return message;
+    }
+
+    @Override
+    public List<Message> pull(int max) {
+        List<Message> messages = new ArrayList<>(Math.min(max, 16));
+        Message message;
+        while (messages.size() < max && (message = pull()) != null)
+            messages.add(message);
+        return messages;
+    }
+
+    // Returns null if the timeout expires, or if the thread gets interrupted (its interrupt status is kept)
+    @Override
+    public Message pull(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int round = 0;
+        Message message;
+        while ((message = pull()) == null) {
+            if (System.nanoTime() - deadline >= 0 || Thread.currentThread().isInterrupted())
+                return null;
+            waitStrategy.idle(round++);
+        }
+        return message;
+    }
+
+    // Only reschedules the sweep when it comes earlier, the volatile read keeps the pulls off the monitor
+    private void scheduleSweep(long at) {
+        if (at >= nextSweep)
+            return;
+        synchronized (this) {
+            if (closed || (sweepTimeout != null && nextSweep <= at))
+                return;
+            if (sweepTimeout != null)
+                sweepTimeout.cancel();
+            nextSweep = at;
+            sweepTimeout = scheduler.schedule(new VisibilityScheduler.Timeout(new Runnable() {
+                @Override
+                public void run() {
+                    sweep();
+                }
+            }, Math.max(at - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS));
+        }
+    }
+
+    // Marks the expired leases, of this process or of the others, and schedules the next sweep at the earliest deadline,
+    // at least every second for the leases of the processes that died
+    // The header counts the expired messages, so that the pulls only look for them when there are some
+    private void sweep() {
+        synchronized (this) {
+            sweepTimeout = null;
+            nextSweep = Long.MAX_VALUE;
+            if (closed)
+                return;
+        }
+        long now = System.currentTimeMillis();
+        long next = now + sweepPeriod;
+        for (int index = 0; index < capacity; ++index) {
+            long slot = slotAddress(index);
+            long lease = getVolatile(slot + leaseField);
+            if (lease == 0 || Handle.origin(lease) == expiredOrigin || Handle.origin(lease) == freeOrigin)
+                continue;
+            long deadline = NativeMemory.getLong(slot + deadlineField);
+            if (deadline > now) {
+                next = Math.min(next, deadline);
+                continue;
+            }
+            long expired = Handle.pack(expiredOrigin, Handle.sequence(lease), Handle.receiveCount(lease));
+            if (compareAndSet(slot + leaseField, lease, expired)) {
+                NativeMemory.putLong(slot + pushTimeField, System.nanoTime());
+                NativeMemory.getAndAddLong(address + expiredOffset, 1);
+                if (Handle.origin(lease) == leasedOrigin)
+                    metrics.recordRedelivery();
+            }
+        }
+        scheduleSweep(next);
+    }
+
+    @Override
+    public void delete(String handle) {
+        long packed = Handle.parse(handle);
+        if (packed == Handle.none || Handle.origin(packed) != leasedOrigin)
+            return;
+        long slot = slotAddress(Handle.sequence(packed));
+        if (!compareAndSet(slot + leaseField, packed, 0))
+            return;
+        // Hands the slot over to the producers of the next lap, its sequence is still the one it was published with
+        NativeMemory.putOrderedLong(slot + sequenceField, getVolatile(slot + sequenceField) - 1 + capacity);
+        metrics.recordDelete();
+    }
+
+    @Override
+    public void deleteBatch(Collection<String> handles) {
+        for (String handle : handles)
+            delete(handle);
+    }
+
+    // Offers again on the ticks of the scheduler while the ring is full, instead of waiting
+    @Override
+    public CompletableFuture<Void> pushAsync(final Message message) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (offer(message))
+                        future.complete(null);
+                    else
+                        scheduler.schedule(new VisibilityScheduler.Timeout(this, 1, TimeUnit.MILLISECONDS));
+                }
+                catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        }.run();
+        return future;
+    }
+
+    // Polls again on the ticks of the scheduler while the ring is empty, whatever the WaitStrategy
+    @Override
+    public CompletableFuture<Message> pullAsync(long timeout, TimeUnit unit) {
+        final CompletableFuture<Message> future = new CompletableFuture<>();
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        new Runnable() {
+            @Override
+            public void run() {
+                Message message = pull();
+                if (message != null || System.nanoTime() - deadline >= 0)
+                    future.complete(message);
+                else
+                    scheduler.schedule(new VisibilityScheduler.Timeout(this, 1, TimeUnit.MILLISECONDS));
+            }
+        }.run();
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String handle) {
+        delete(handle);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    // Whether a pull may find a message, at the head or expired
+    private boolean readable() {
+        long position = getVolatile(address + headOffset);
+        return getVolatile(slotAddress(position) + sequenceField) == position + 1
+                || getVolatile(address + expiredOffset) > 0;
+    }
+
+    // The watchers are called by the pushes of this process, and, while there are some,
+    // the ring is checked on the ticks of the scheduler for the pushes of the others
+    @Override
+    public boolean watch(Runnable watcher) {
+        waiters.watch(watcher);
+        if (watching.compareAndSet(false, true))
+            scheduler.schedule(new VisibilityScheduler.Timeout(checking, 1, TimeUnit.MILLISECONDS));
+        return true;
+    }
+
+    @Override
+    public void unwatch(Runnable watcher) {
+        waiters.unwatch(watcher);
+    }
+
+    @Override
+    public QueueMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Deletes the queue for all the processes, the mapping itself is released by the garbage collector
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            if (sweepTimeout != null)
+                sweepTimeout.cancel();
+        }
+        file.delete();
+        lockFile.delete();
+    }
+}
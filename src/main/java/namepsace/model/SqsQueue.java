@@ -1,23 +1,58 @@
 package namespace.model;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
-import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQSAsyncClient;
 import com.amazonaws.services.sqs.model.*;
 
 /*
  * Amazon SQS version of the MessageQueue.
- * It strives to deliver messages in FIFO order, but does not guarantee it.
+ * It strives to deliver messages in FIFO order, but does not guarantee it, except within a message group on a FIFO queue.
  * Correct AWS credentials need to be configured on the system in order to use this.
+ * Batch operations are mapped to the SQS batch actions, which take at most 10 entries per call.
+ * Waiting pulls are mapped to long polling, which waits at most 20 seconds per call.
+ * Metrics rely on the SentTimestamp and ApproximateReceiveCount attributes of the received messages.
+ * SQS bodies are text: binary bodies are sent in base64, flagged by the BodyEncoding message attribute.
+ * The asynchronous operations go through the async client, so they only hold one of its threads during the call,
+ * and their futures are completed from those threads.
+ * A queue ID ending with ".fifo" creates a FIFO queue, where the group of a message is its MessageGroupId.
+ * Its messages must all have a group, and their deduplication ID is their MessageDeduplicationId, deduplicated by SQS
+ * over its own 5 minute window. The messages without one get a random one, which SQS requires, so they are never deduplicated.
+ * SQS only deduplicates on FIFO queues, so the deduplication ID of a message without a group is not sent, and has no effect.
+ * This version of the SDK predates FIFO queues, so these parameters are sent as custom query parameters.
  */
 
 public class SqsQueue implements MessageQueue {
-    private AmazonSQSClient sqs;
-    private String queueUrl;
+    protected static final int maxBatchSize = 10;
+    protected static final int maxWaitTimeSeconds = 20;
+    protected static final int maxDelaySeconds = 900;
+    private static final String bodyEncodingAttribute = "BodyEncoding";
+    private static final String fifoSuffix = ".fifo";
+    private static final MessageAttributeValue base64Encoding =
+            new MessageAttributeValue().withDataType("String").withStringValue("base64");
+    protected AmazonSQSAsyncClient sqs;
+    protected String queueUrl;
+    private QueueMetrics metrics = new QueueMetrics();
 
-    public SqsQueue(String queueId, AmazonSQSClient sqs) {
+    public SqsQueue(String queueId, AmazonSQSAsyncClient sqs) {
         this.sqs = sqs;
         CreateQueueRequest createQueueRequest = new CreateQueueRequest(queueId);
+        if (queueId.endsWith(fifoSuffix))
+            createQueueRequest.addAttributesEntry("FifoQueue", "true");
         queueUrl = sqs.createQueue(createQueueRequest).getQueueUrl();
     }
 
@@ -30,25 +65,261 @@ public class SqsQueue implements MessageQueue {
 
     @Override
     public void push(namespace.model.Message message) {
-        sqs.sendMessage(new SendMessageRequest(queueUrl, message.getBody()));
+        sqs.sendMessage(sendRequest(message));
+        metrics.recordPush(1);
+    }
+
+    // Maps to DelaySeconds, rounded up to the second, which SQS rejects above 15 minutes:
+    // a longer delay throws an IllegalArgumentException instead of being sent
+    @Override
+    public void push(namespace.model.Message message, long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            push(message);
+            return;
+        }
+        long millis = unit.toMillis(delay);
+        if (millis > TimeUnit.SECONDS.toMillis(maxDelaySeconds))
+            throw new IllegalArgumentException("SQS does not delay messages for more than " + maxDelaySeconds + " seconds");
+        sqs.sendMessage(sendRequest(message).withDelaySeconds((int) ((millis + 999) / 1000)));
+        metrics.recordPush(1);
+    }
+
+    private SendMessageRequest sendRequest(namespace.model.Message message) {
+        SendMessageRequest request = new SendMessageRequest(queueUrl, sqsBody(message));
+        if (message.isBinary())
+            request.addMessageAttributesEntry(bodyEncodingAttribute, base64Encoding);
+        addGroup(request, "", message);
+        return request;
+    }
+
+    // The prefix of the parameters of the message, empty unless it is an entry of a batch
+    // The deduplication ID is only sent along with a group, which the standard queues reject
+    private static void addGroup(AmazonWebServiceRequest request, String prefix, namespace.model.Message message) {
+        if (message.getGroupId() == null)
+            return;
+        request.putCustomQueryParameter(prefix + "MessageGroupId", message.getGroupId());
+        String deduplicationId = message.getDeduplicationId();
+        request.putCustomQueryParameter(prefix + "MessageDeduplicationId",
+                deduplicationId != null ? deduplicationId : UUID.randomUUID().toString());
+    }
+
+    @Override
+    public void pushBatch(List<namespace.model.Message> messages) {
+        for (int start = 0; start < messages.size(); start += maxBatchSize) {
+            List<namespace.model.Message> batch = messages.subList(start, Math.min(start + maxBatchSize, messages.size()));
+            List<SendMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); ++i) {
+                SendMessageBatchRequestEntry entry = new SendMessageBatchRequestEntry(String.valueOf(i), sqsBody(batch.get(i)));
+                if (batch.get(i).isBinary())
+                    entry.addMessageAttributesEntry(bodyEncodingAttribute, base64Encoding);
+                entries.add(entry);
+            }
+            SendMessageBatchRequest request = new SendMessageBatchRequest(queueUrl, entries);
+            for (int i = 0; i < batch.size(); ++i)
+                addGroup(request, "SendMessageBatchRequestEntry." + (i + 1) + ".", batch.get(i));
+            SendMessageBatchResult result = sqs.sendMessageBatch(request);
+            checkFailures(result.getFailed());
+            metrics.recordPush(batch.size());
+        }
+    }
+
+    private static String sqsBody(namespace.model.Message message) {
+        if (!message.isBinary())
+            return message.getBody();
+        ByteBuffer body = Base64.getEncoder().encode(message.getBinaryBody());
+        return new String(body.array(), body.arrayOffset(), body.remaining(), StandardCharsets.US_ASCII);
+    }
+
+    protected ReceiveMessageRequest receiveRequest() {
+        return new ReceiveMessageRequest(queueUrl).withAttributeNames("SentTimestamp", "ApproximateReceiveCount", "MessageGroupId")
+                .withMessageAttributeNames(bodyEncodingAttribute);
+    }
+
+    protected namespace.model.Message received(com.amazonaws.services.sqs.model.Message message) {
+        Map<String, String> attributes = message.getAttributes();
+        String sentTimestamp = attributes.get("SentTimestamp");
+        long latency = sentTimestamp == null ? 0 : System.currentTimeMillis() - Long.parseLong(sentTimestamp);
+        String receiveCount = attributes.get("ApproximateReceiveCount");
+        if (receiveCount != null && Integer.parseInt(receiveCount) > 1)
+            metrics.recordRedelivery();
+        metrics.recordPull(TimeUnit.MILLISECONDS.toNanos(latency));
+        MessageAttributeValue encoding = message.getMessageAttributes().get(bodyEncodingAttribute);
+        namespace.model.Message received;
+        if (encoding != null && "base64".equals(encoding.getStringValue()))
+            received = new namespace.model.Message(message.getReceiptHandle(),
+                    ByteBuffer.wrap(Base64.getDecoder().decode(message.getBody())));
+        else
+            received = new namespace.model.Message(message.getReceiptHandle(), message.getBody());
+        received.setGroupId(attributes.get("MessageGroupId"));
+        return received;
     }
 
     @Override
     public namespace.model.Message pull() {
         // By default, MaxNumberOfMessages is set to 1
-        ReceiveMessageResult result = sqs.receiveMessage(queueUrl);
+        ReceiveMessageResult result = sqs.receiveMessage(receiveRequest());
         List<com.amazonaws.services.sqs.model.Message> messages = result.getMessages();
         if (messages.isEmpty())
             return null;
-        else {
-            com.amazonaws.services.sqs.model.Message message = messages.get(0);
-            return new namespace.model.Message(message.getReceiptHandle(), message.getBody());
-        }
+        else
+            return received(messages.get(0));
+    }
+
+    // A single round trip, which may return less than max messages even if more are available
+    @Override
+    public List<namespace.model.Message> pull(int max) {
+        return receive(max, null);
+    }
+
+    // Without waitTimeSeconds, the queue default applies
+    protected List<namespace.model.Message> receive(int max, Integer waitTimeSeconds) {
+        ReceiveMessageRequest request = receiveRequest().withMaxNumberOfMessages(Math.min(max, maxBatchSize))
+                .withWaitTimeSeconds(waitTimeSeconds);
+        List<com.amazonaws.services.sqs.model.Message> received = sqs.receiveMessage(request).getMessages();
+        List<namespace.model.Message> messages = new ArrayList<>(received.size());
+        for (com.amazonaws.services.sqs.model.Message message : received)
+            messages.add(received(message));
+        return messages;
+    }
+
+    @Override
+    public namespace.model.Message pull(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long remaining = unit.toNanos(timeout);
+        do {
+            // Rounded up, so that the last call does not turn into a short polling loop
+            long waitTimeSeconds = Math.min(maxWaitTimeSeconds, (remaining + 999999999L) / 1000000000L);
+            ReceiveMessageRequest request = receiveRequest().withWaitTimeSeconds((int) waitTimeSeconds);
+            List<com.amazonaws.services.sqs.model.Message> messages = sqs.receiveMessage(request).getMessages();
+            if (!messages.isEmpty())
+                return received(messages.get(0));
+            remaining = deadline - System.nanoTime();
+        } while (remaining > 0);
+        return null;
     }
 
     @Override
     public void delete(String handle) {
         sqs.deleteMessage(new DeleteMessageRequest(queueUrl, handle));
+        metrics.recordDelete();
+    }
+
+    @Override
+    public void deleteBatch(Collection<String> handles) {
+        sendDeletes(handles, true);
+    }
+
+    // Deletes in batches of 10, recording the successful deletes in the metrics if asked to
+    protected void sendDeletes(Collection<String> handles, boolean record) {
+        List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(maxBatchSize);
+        for (String handle : handles) {
+            entries.add(new DeleteMessageBatchRequestEntry(String.valueOf(entries.size()), handle));
+            if (entries.size() == maxBatchSize) {
+                sendDeletes(entries, record);
+                entries = new ArrayList<>(maxBatchSize);
+            }
+        }
+        if (!entries.isEmpty())
+            sendDeletes(entries, record);
+    }
+
+    private void sendDeletes(List<DeleteMessageBatchRequestEntry> entries, boolean record) {
+        DeleteMessageBatchResult result = sqs.deleteMessageBatch(new DeleteMessageBatchRequest(queueUrl, entries));
+        if (record) {
+            for (int i = 0; i < result.getSuccessful().size(); ++i)
+                metrics.recordDelete();
+        }
+        checkFailures(result.getFailed());
+    }
+
+    private void checkFailures(List<BatchResultErrorEntry> failures) {
+        // Batch actions do not throw when only some of their entries fail
+        if (!failures.isEmpty()) {
+            BatchResultErrorEntry failure = failures.get(0);
+            throw new AmazonClientException(failures.size() + " batch entries failed, first one with "
+                    + failure.getCode() + ": " + failure.getMessage());
+        }
+    }
+
+    // Completes a future from the callbacks of the async client
+    private static class FutureHandler<R extends AmazonWebServiceRequest, T> implements AsyncHandler<R, T> {
+        private CompletableFuture<T> future = new CompletableFuture<>();
+
+        @Override
+        public void onError(Exception exception) {
+            future.completeExceptionally(exception);
+        }
+
+        @Override
+        public void onSuccess(R request, T result) {
+            future.complete(result);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> pushAsync(namespace.model.Message message) {
+        FutureHandler<SendMessageRequest, SendMessageResult> handler = new FutureHandler<>();
+        sqs.sendMessageAsync(sendRequest(message), handler);
+        return handler.future.thenApply(new Function<SendMessageResult, Void>() {
+            @Override
+            public Void apply(SendMessageResult result) {
+                metrics.recordPush(1);
+                return null;
+            }
+        });
+    }
+
+    // Long polls again until the deadline, like pull(timeout, unit)
+    @Override
+    public CompletableFuture<namespace.model.Message> pullAsync(long timeout, TimeUnit unit) {
+        return receiveAsync(System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    private CompletableFuture<namespace.model.Message> receiveAsync(final long deadline) {
+        long remaining = Math.max(deadline - System.nanoTime(), 0);
+        long waitTimeSeconds = Math.min(maxWaitTimeSeconds, (remaining + 999999999L) / 1000000000L);
+        FutureHandler<ReceiveMessageRequest, ReceiveMessageResult> handler = new FutureHandler<>();
+        sqs.receiveMessageAsync(receiveRequest().withWaitTimeSeconds((int) waitTimeSeconds), handler);
+        return handler.future.thenCompose(
+                new Function<ReceiveMessageResult, CompletionStage<namespace.model.Message>>() {
+            @Override
+            public CompletionStage<namespace.model.Message> apply(ReceiveMessageResult result) {
+                List<com.amazonaws.services.sqs.model.Message> messages = result.getMessages();
+                if (!messages.isEmpty())
+                    return CompletableFuture.completedFuture(received(messages.get(0)));
+                if (deadline - System.nanoTime() > 0)
+                    return receiveAsync(deadline);
+                return CompletableFuture.completedFuture(null);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String handle) {
+        FutureHandler<DeleteMessageRequest, Void> handler = new FutureHandler<>();
+        sqs.deleteMessageAsync(new DeleteMessageRequest(queueUrl, handle), handler);
+        return handler.future.thenApply(new Function<Void, Void>() {
+            @Override
+            public Void apply(Void result) {
+                metrics.recordDelete();
+                return null;
+            }
+        });
+    }
+
+    // SQS does not tell when messages arrive, short of receiving them
+    @Override
+    public boolean watch(Runnable watcher) {
+        return false;
+    }
+
+    @Override
+    public void unwatch(Runnable watcher) {
+    }
+
+    @Override
+    public QueueMetrics getMetrics() {
+        return metrics;
     }
 
     @Override
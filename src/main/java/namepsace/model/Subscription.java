@@ -0,0 +1,157 @@
+package namespace.model;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Pushes the messages of a queue to a MessageHandler, instead of having each consumer write its own pulling loop.
+ * A fetching thread pulls batches and hands the messages to a pool of concurrency workers.
+ * At most concurrency + prefetch messages are pulled and not handled yet, so the fetching waits for free slots,
+ * and an idle subscription parks in a waiting pull rather than polling.
+ * A message is deleted once handled, and left to the visibility timeout of the queue if the handler throws,
+ * so it becomes visible again then, the exception going to the error handler. Prefetched messages have to be handled before their visibility timeout as well.
+ * close() stops the fetching, and waits for the messages already fetched to be handled.
+ * Threads are never interrupted, since it could close the channels of a FileQueue under them,
+ * so close() also waits for the pull in progress, up to a second when the queue is idle.
+ * A pull that fails is retried after a second, its error going to the error handler as well.
+ * The error handler is by default the uncaught exception handler of the thread that got the error.
+ */
+
+public class Subscription {
+    private static final long idleWaitSeconds = 1;
+    private static AtomicInteger subscriptionCount = new AtomicInteger(0);
+    private MessageQueue queue;
+    private MessageHandler handler;
+    private int batchSize;
+    private Semaphore freeSlots;
+    private ThreadPoolExecutor workers;
+    private Thread fetchingThread;
+    private AtomicInteger failureCount = new AtomicInteger(0);
+    private volatile boolean closed = false;
+    private volatile Thread.UncaughtExceptionHandler errorHandler;
+
+    private class FetchingRunnable implements Runnable {
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    freeSlots.acquire();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                if (closed) {
+                    freeSlots.release();
+                    return;
+                }
+                int count = 1 + Math.min(batchSize - 1, freeSlots.availablePermits());
+                if (!freeSlots.tryAcquire(count - 1))
+                    count = 1;
+                List<Message> messages = Collections.emptyList();
+                try {
+                    messages = queue.pull(count);
+                    if (messages.isEmpty()) {
+                        Message message = queue.pull(idleWaitSeconds, TimeUnit.SECONDS);
+                        if (message != null)
+                            messages = Collections.singletonList(message);
+                    }
+                }
+                catch (RuntimeException e) {
+                    if (closed)
+                        return;
+                    handleError(e, fetchingThread);
+                    try { Thread.sleep(TimeUnit.SECONDS.toMillis(idleWaitSeconds)); }
+                    catch (InterruptedException ie) { return; }
+                }
+                finally {
+                    freeSlots.release(count - messages.size());
+                }
+                // The workers are only shut down once this thread is done
+                for (Message message : messages)
+                    workers.execute(new HandlingRunnable(message));
+            }
+        }
+    }
+
+    private class HandlingRunnable implements Runnable {
+        private Message message;
+
+        public HandlingRunnable(Message message) {
+            this.message = message;
+        }
+
+        @Override
+        public void run() {
+            try {
+                handler.handle(message);
+                queue.delete(message.getHandle());
+            }
+            catch (Exception e) {
+                failureCount.incrementAndGet();
+                handleError(e, Thread.currentThread());
+            }
+            finally {
+                freeSlots.release();
+            }
+        }
+    }
+
+    public Subscription(MessageQueue queue, MessageHandler handler, int concurrency, int prefetch) {
+        if (concurrency < 1 || prefetch < 0)
+            throw new IllegalArgumentException("Invalid concurrency " + concurrency + " or prefetch " + prefetch);
+        this.queue = queue;
+        this.handler = handler;
+        batchSize = Math.max(1, prefetch);
+        freeSlots = new Semaphore(concurrency + prefetch);
+        final int index = subscriptionCount.getAndIncrement();
+        workers = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private int workerCount = 0;
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "subscription-" + index + "-worker-" + workerCount++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        fetchingThread = new Thread(new FetchingRunnable(), "subscription-" + index + "-fetcher");
+        fetchingThread.setDaemon(true);
+        fetchingThread.start();
+    }
+
+    // Receives the errors of the pulls, which the fetching thread retries, and the exceptions of the handler
+    public void setErrorHandler(Thread.UncaughtExceptionHandler errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+
+    private void handleError(Exception e, Thread thread) {
+        Thread.UncaughtExceptionHandler handler = errorHandler;
+        if (handler == null)
+            handler = thread.getUncaughtExceptionHandler();
+        handler.uncaughtException(thread, e);
+    }
+
+    // Messages whose handler threw, and that were left to be redelivered
+    public int getFailureCount() {
+        return failureCount.get();
+    }
+
+    public void close() {
+        closed = true;
+        try {
+            fetchingThread.join();
+            workers.shutdown();
+            while (!workers.awaitTermination(1, TimeUnit.MINUTES));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package namespace.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Version of the MessageQueue serving its head from memory, and spilling what does not fit to a SegmentedLog.
+ * Messages go to the memory tier, as in InMemoryQueue, until its estimated size reaches the memory threshold.
+ * From then on, the pushes are appended to the disk tier behind the messages already there, so the order is kept,
+ * until the disk tier has been drained back to memory, ahead of the consumers, by the background pool.
+ * The disk tier only absorbs the bursts: it does not survive the queue, and is not shared with other processes.
+ * Pulled messages stay on the heap until deleted, and the redelivered and delayed ones go to the memory tier whatever its size.
+ */
+
+public class TieredQueue implements MessageQueue {
+    // Rough heap footprint of a message and its deque node, on top of its body
+    private static final int messageOverhead = 64;
+    private static final int refillBatch = 64;
+    private long memoryThreshold;
+    private Deque<Message> memory = new ConcurrentLinkedDeque<>();
+    private AtomicLong memoryBytes = new AtomicLong(0);
+    // Set while messages are on disk, so that the next pushes go behind them
+    private volatile boolean spilling = false;
+    // Records appended and not read yet, only exact with the appendLock held
+    private AtomicLong onDisk = new AtomicLong(0);
+    private SegmentedLog log;
+    private ReentrantLock appendLock = new ReentrantLock();
+    private ReentrantLock readLock = new ReentrantLock();
+    private ExecutorService background;
+    private volatile boolean closed = false;
+    private AtomicBoolean refillScheduled = new AtomicBoolean(false);
+    private Runnable refilling = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                refill();
+            }
+            finally {
+                refillScheduled.set(false);
+            }
+            // Spilled meanwhile
+            scheduleRefill();
+        }
+    };
+    private VisibilityScheduler scheduler;
+    private InFlightMessages inFlight;
+    private DelayedMessages delayed;
+    private PullWaiters waiters = new PullWaiters();
+    private QueueMetrics metrics = new QueueMetrics();
+    private int visibilityTimeout = 10;
+    private AtomicLong messageId = new AtomicLong(0);
+
+    // The memory threshold is in bytes, the background pool refills the memory and deletes the spilled segments
+    // The log left in the spill directory by a queue that was not closed is deleted, but the queue refuses to start
+    // in a directory holding the files of anything else, since it deletes the directory on close
+    public TieredQueue(File spillDir, long memoryThreshold, VisibilityScheduler scheduler, ExecutorService background) {
+        this.memoryThreshold = memoryThreshold;
+        this.scheduler = scheduler;
+        this.background = background;
+        String[] names = spillDir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (!SegmentedLog.isLogFile(name))
+                    throw new IllegalArgumentException("The spill directory " + spillDir + " holds the file " + name);
+            }
+            // Left by a crash, the messages spilled there did not survive their queue
+            for (String name : names)
+                new File(spillDir, name).delete();
+        }
+        try {
+            log = new SegmentedLog(spillDir, SegmentedLog.defaultSegmentSize, background);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        inFlight = new InFlightMessages(scheduler) {
+            @Override
+            protected void redeliver(Message message, long handle) {
+                message.setPushTime(System.nanoTime());
+                memoryBytes.addAndGet(sizeOf(message));
+                memory.addLast(message);
+                metrics.recordRedelivery();
+                waiters.signal();
+            }
+        };
+        delayed = new DelayedMessages(scheduler) {
+            @Override
+            protected void promote(List<Message> messages) {
+                long now = System.nanoTime();
+                for (Message message : messages) {
+                    message.setPushTime(now);
+                    memoryBytes.addAndGet(sizeOf(message));
+                    memory.addFirst(message);
+                }
+                waiters.signalAll();
+            }
+        };
+    }
+
+    @Override
+    public void setVisibilityTimeout(int visibilityTimeout) {
+        this.visibilityTimeout = visibilityTimeout;
+    }
+
+    private static long sizeOf(Message message) {
+        if (message.isBinary())
+            return messageOverhead + message.getBinaryBody().remaining();
+        return messageOverhead + 2L * message.getBody().length();
+    }
+
+    private static ByteBuffer[] encode(Message message) {
+        ByteBuffer header = ByteBuffer.allocate(8 + 1);
+        header.putLong(message.getPushTime()).put((byte) (message.isBinary() ? 1 : 0)).flip();
+        return new ByteBuffer[] { header, message.getBinaryBody() };
+    }
+
+    private static Message decode(byte[] record) {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        long pushTime = buffer.getLong(0);
+        boolean binary = buffer.get(8) == 1;
+        int bodyStart = 8 + 1;
+        Message message;
+        if (binary)
+            message = new Message(ByteBuffer.wrap(record, bodyStart, record.length - bodyStart).slice());
+        else
+            message = new Message(new String(record, bodyStart, record.length - bodyStart, StandardCharsets.UTF_8));
+        message.setPushTime(pushTime);
+        return message;
+    }
+
+    @Override
+    public void push(Message message) {
+        pushBatch(Collections.singletonList(message));
+    }
+
+    @Override
+    public void push(Message message, long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            push(message);
+            return;
+        }
+        delayed.delay(message, delay, unit);
+        metrics.recordPush(1);
+    }
+
+    // The messages that do not fit in memory are spilled with a single append
+    @Override
+    public void pushBatch(List<Message> messages) {
+        long pushTime = System.nanoTime();
+        int kept = 0;
+        if (!spilling) {
+            for (; kept < messages.size(); ++kept) {
+                Message message = messages.get(kept);
+                long size = sizeOf(message);
+                if (memoryBytes.addAndGet(size) > memoryThreshold) {
+                    memoryBytes.addAndGet(-size);
+                    break;
+                }
+                message.setPushTime(pushTime);
+                memory.addFirst(message);
+            }
+        }
+        if (kept < messages.size())
+            spill(messages.subList(kept, messages.size()), pushTime);
+        metrics.recordPush(messages.size());
+        if (messages.size() == 1)
+            waiters.signal();
+        else
+            waiters.signalAll();
+    }
+
+    private void spill(List<Message> messages, long pushTime) {
+        List<ByteBuffer[]> records = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            message.setPushTime(pushTime);
+            records.add(encode(message));
+        }
+        appendLock.lock();
+        try {
+            spilling = true;
+            log.append(records);
+            onDisk.addAndGet(records.size());
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            appendLock.unlock();
+        }
+        scheduleRefill();
+    }
+
+    // Once the memory tier falls below half the threshold, a pull that finds it empty refilling it itself
+    private void scheduleRefill() {
+        if (spilling && onDisk.get() > 0 && memoryBytes.get() <= memoryThreshold / 2
+                && refillScheduled.compareAndSet(false, true))
+            background.execute(refilling);
+    }
+
+    // Moves records from the disk to memory until the threshold is reached, and stops spilling once the disk is drained
+    private void refill() {
+        boolean refilled = false;
+        readLock.lock();
+        try {
+            if (closed)
+                return;
+            while (memoryBytes.get() < memoryThreshold) {
+                List<SegmentedLog.Record> records = log.read(refillBatch);
+                if (records.isEmpty())
+                    break;
+                log.commit();
+                for (SegmentedLog.Record record : records) {
+                    Message message = decode(record.getData());
+                    memoryBytes.addAndGet(sizeOf(message));
+                    memory.addFirst(message);
+                }
+                onDisk.addAndGet(-records.size());
+                refilled = true;
+            }
+            log.deleteBefore(log.readSegment());
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            readLock.unlock();
+        }
+        // Not under the readLock, which a waiting pull may need while it holds the lock of the waiters
+        if (refilled)
+            waiters.signalAll();
+        // No append can be in progress with the appendLock held
+        appendLock.lock();
+        try {
+            if (onDisk.get() == 0)
+                spilling = false;
+        }
+        finally {
+            appendLock.unlock();
+        }
+    }
+
+    private Message poll() {
+        Message message = memory.pollLast();
+        if (message == null && spilling) {
+            refill();
+            message = memory.pollLast();
+        }
+        if (message == null)
+            return null;
+        memoryBytes.addAndGet(-sizeOf(message));
+        metrics.recordPull(System.nanoTime() - message.getPushTime());
+        // Handles are given on pull, the consumer getting a copy and the queue redelivering its own instance
+        return inFlight.hide(message, Handle.pack(0, messageId.getAndIncrement(), 1), visibilityTimeout);
+    }
+
+    @Override
+    public Message pull() {
+        Message message = poll();
+        scheduleRefill();
+        return message;
+    }
+
+    @Override
+    public List<Message> pull(int max) {
+        List<Message> messages = new ArrayList<>(Math.min(max, 16));
+        Message message;
+        while (messages.size() < max && (message = poll()) != null)
+            messages.add(message);
+        scheduleRefill();
+        return messages;
+    }
+
+    @Override
+    public Message pull(long timeout, TimeUnit unit) {
+        return waiters.pull(this, timeout, unit);
+    }
+
+    @Override
+    public void delete(String handle) {
+        if (inFlight.delete(handle))
+            metrics.recordDelete();
+    }
+
+    @Override
+    public void deleteBatch(Collection<String> handles) {
+        for (String handle : handles)
+            delete(handle);
+    }
+
+    // Spilling pushes write to the disk before returning, the future fails with an UncheckedIOException if they could not
+    @Override
+    public CompletableFuture<Void> pushAsync(Message message) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            push(message);
+            future.complete(null);
+        }
+        catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    // The signaled pulls run on the background pool, since they may have to refill the memory
+    @Override
+    public CompletableFuture<Message> pullAsync(long timeout, TimeUnit unit) {
+        return waiters.pullAsync(this, timeout, unit, scheduler, background);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String handle) {
+        delete(handle);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public boolean watch(Runnable watcher) {
+        waiters.watch(watcher);
+        return true;
+    }
+
+    @Override
+    public void unwatch(Runnable watcher) {
+        waiters.unwatch(watcher);
+    }
+
+    @Override
+    public QueueMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        inFlight.clear();
+        delayed.clear();
+        memory.clear();
+        memoryBytes.set(0);
+        appendLock.lock();
+        readLock.lock();
+        try {
+            closed = true;
+            log.delete();
+        }
+        finally {
+            readLock.unlock();
+            appendLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package namespace.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Visibility timeouts scheduler, meant to be shared by all the queues of a QueueService.
+ * Timeouts are kept in a hashed timer wheel: a ring of buckets, one per tick of 10ms, each one a linked list of Timeouts.
+ * A Timeout further away than one turn of the wheel waits for as many rounds in its bucket.
+ * Scheduling and cancelling a Timeout are O(1), and a cancelled Timeout is unlinked right away instead of lingering.
+ * A single daemon thread advances the wheel and runs the expired Timeouts, up to a tick late.
+ * It can also run short background tasks, as an Executor.
+ * A task that throws does not stop the thread: the error goes to the error handler, by default the uncaught exception
+ * handler of the thread, which can be set for the whole JVM with Thread.setDefaultUncaughtExceptionHandler().
+ */
+
+public class VisibilityScheduler implements Executor {
+    private static final int wheelSize = 512;
+    private static final long tickNanos = TimeUnit.MILLISECONDS.toNanos(10);
+    private Timeout[] wheel = new Timeout[wheelSize];
+    private int size = 0;
+    private long startTime = System.nanoTime();
+    // Last tick whose bucket got expired
+    private long currentTick = 0;
+    private Deque<Runnable> ready = new ArrayDeque<>();
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition wakeUp = lock.newCondition();
+    private Thread drainingThread;
+    private volatile Thread.UncaughtExceptionHandler errorHandler;
+
+    // Subclasses can override run() instead of giving an action
+    public static class Timeout implements Runnable {
+        private Runnable action;
+        private long deadline;
+        private int rounds;
+        private int bucket = -1;
+        private Timeout previous;
+        private Timeout next;
+        private volatile VisibilityScheduler scheduler;
+        private volatile boolean cancelled = false;
+
+        public Timeout(Runnable action, long delay, TimeUnit unit) {
+            this.action = action;
+            this.deadline = System.nanoTime() + unit.toNanos(delay);
+        }
+
+        protected Timeout(long delay, TimeUnit unit) {
+            this(null, delay, unit);
+        }
+
+        public void cancel() {
+            cancelled = true;
+            VisibilityScheduler scheduler = this.scheduler;
+            if (scheduler != null)
+                scheduler.remove(this);
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public void run() {
+            action.run();
+        }
+    }
+
+    private class DrainingRunnable implements Runnable {
+        @Override
+        public void run() {
+            List<Runnable> tasks = new ArrayList<>();
+            while (!Thread.currentThread().isInterrupted()) {
+                lock.lock();
+                try {
+                    long now;
+                    while (ready.isEmpty() && (now = System.nanoTime()) - nextTickTime() < 0) {
+                        // Nothing can expire while the wheel is empty
+                        if (size == 0)
+                            wakeUp.await();
+                        else
+                            wakeUp.awaitNanos(nextTickTime() - now);
+                    }
+                    advance(System.nanoTime());
+                    tasks.addAll(ready);
+                    ready.clear();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                finally {
+                    lock.unlock();
+                }
+                for (Runnable task : tasks) {
+                    if (task instanceof Timeout && ((Timeout) task).isCancelled())
+                        continue;
+                    try { task.run(); }
+                    catch (RuntimeException e) { handleError(e); }
+                }
+                tasks.clear();
+            }
+        }
+    }
+
+    public VisibilityScheduler() {
+        drainingThread = new Thread(new DrainingRunnable(), "visibility-scheduler");
+        drainingThread.setDaemon(true);
+        drainingThread.start();
+    }
+
+    public void setErrorHandler(Thread.UncaughtExceptionHandler errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+
+    private void handleError(RuntimeException e) {
+        Thread.UncaughtExceptionHandler handler = errorHandler;
+        if (handler == null)
+            handler = drainingThread.getUncaughtExceptionHandler();
+        handler.uncaughtException(drainingThread, e);
+    }
+
+    // The following methods must be called with the lock held
+
+    private long nextTickTime() {
+        return startTime + (currentTick + 1) * tickNanos;
+    }
+
+    private long tickOf(long time) {
+        return Math.max(time - startTime, 0) / tickNanos;
+    }
+
+    // Moves the Timeouts expired by now to the ready tasks
+    private void advance(long now) {
+        long nowTick = tickOf(now);
+        while (currentTick < nowTick) {
+            if (size == 0) {
+                currentTick = nowTick;
+                break;
+            }
+            ++currentTick;
+            Timeout timeout = wheel[(int) currentTick & (wheelSize - 1)];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.rounds == 0) {
+                    unlink(timeout);
+                    ready.add(timeout);
+                }
+                else
+                    --timeout.rounds;
+                timeout = next;
+            }
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.bucket < 0)
+            return;
+        if (timeout.previous == null)
+            wheel[timeout.bucket] = timeout.next;
+        else
+            timeout.previous.next = timeout.next;
+        if (timeout.next != null)
+            timeout.next.previous = timeout.previous;
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        --size;
+    }
+
+    public Timeout schedule(Timeout timeout) {
+        lock.lock();
+        try {
+            timeout.scheduler = this;
+            if (timeout.isCancelled())
+                return timeout;
+            // The wheel did not move while empty
+            if (size == 0)
+                currentTick = Math.max(currentTick, tickOf(System.nanoTime()));
+            // Rounded up, so that a Timeout never expires early
+            long tick = (Math.max(timeout.deadline - startTime, 0) + tickNanos - 1) / tickNanos;
+            if (tick <= currentTick) {
+                ready.add(timeout);
+                wakeUp.signal();
+                return timeout;
+            }
+            timeout.rounds = (int) ((tick - currentTick - 1) / wheelSize);
+            timeout.bucket = (int) tick & (wheelSize - 1);
+            timeout.next = wheel[timeout.bucket];
+            if (timeout.next != null)
+                timeout.next.previous = timeout;
+            wheel[timeout.bucket] = timeout;
+            if (++size == 1)
+                wakeUp.signal();
+        }
+        finally {
+            lock.unlock();
+        }
+        return timeout;
+    }
+
+    private void remove(Timeout timeout) {
+        lock.lock();
+        try {
+            unlink(timeout);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        lock.lock();
+        try {
+            ready.add(command);
+            wakeUp.signal();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public void shutdown() {
+        drainingThread.interrupt();
+        lock.lock();
+        try {
+            for (int i = 0; i < wheelSize; ++i) {
+                while (wheel[i] != null)
+                    unlink(wheel[i]);
+            }
+            ready.clear();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
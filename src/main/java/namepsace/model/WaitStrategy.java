@@ -0,0 +1,32 @@
+package namespace.model;
+
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * How a thread waits for a lock-free queue to change, when it is empty for a consumer or full for a producer.
+ * SPIN burns its core for the lowest latency, YIELD lets other threads run, and PARK sleeps for a growing time.
+ * The round is the number of times the thread already waited for the same operation.
+ */
+
+public enum WaitStrategy {
+    SPIN {
+        @Override
+        public void idle(int round) {
+        }
+    },
+    YIELD {
+        @Override
+        public void idle(int round) {
+            Thread.yield();
+        }
+    },
+    PARK {
+        // From 1 microsecond up to around a millisecond
+        @Override
+        public void idle(int round) {
+            LockSupport.parkNanos(1000L << Math.min(round, 10));
+        }
+    };
+
+    public abstract void idle(int round);
+}
@@ -0,0 +1,266 @@
+package namespace.service;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import namespace.model.Message;
+import namespace.model.MessageHandler;
+import namespace.model.MessageQueue;
+import namespace.model.QueueMetrics;
+import namespace.model.QueueMetricsMXBean;
+import namespace.model.QueueSelector;
+import namespace.model.Subscription;
+
+/*
+ * Common part of the QueueServices: queues are created on their first use and kept by ID.
+ * Queues can be opened and deleted from any thread, a queue being created only once however many threads ask for it.
+ * It is created outside of the map, since it may block on files or on the network: the other threads asking for it
+ * wait for the future of its opening, and the ones asking for other queues are not held up.
+ * The subscriptions still open are closed on shutdown, before their queues.
+ * The queues given to pullAny() are registered with the QueueSelector of the service, shared by all its callers.
+ * The metrics of the queues are aggregated per service,
+ * and can be exposed as MBeans (one for the service, one per queue) by registerMBeans().
+ */
+
+public abstract class AbstractQueueService<Q extends MessageQueue> implements QueueService {
+    protected Map<String, Q> idToQueue;
+    // The queues being created, until they are in idToQueue
+    private Map<String, CompletableFuture<Q>> openings = new ConcurrentHashMap<>();
+    private Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+    private QueueSelector selector = new QueueSelector();
+    private String mbeanServiceName;
+
+    public AbstractQueueService() {
+        idToQueue = new ConcurrentHashMap<>();
+    }
+
+    protected abstract Q createQueue(String queueId);
+
+    @Override
+    public MessageQueue getQueue(String queueId) {
+        Q queue = idToQueue.get(queueId);
+        if (queue != null)
+            return queue;
+        CompletableFuture<Q> opening = new CompletableFuture<>();
+        CompletableFuture<Q> other = openings.putIfAbsent(queueId, opening);
+        if (other != null)
+            return join(other);
+        try {
+            // Created by another thread since the first lookup
+            queue = idToQueue.get(queueId);
+            if (queue == null) {
+                queue = createQueue(queueId);
+                if (mbeanServiceName != null)
+                    registerMBean(queueObjectName(queueId), queue.getMetrics());
+                idToQueue.put(queueId, queue);
+            }
+            opening.complete(queue);
+            return queue;
+        }
+        catch (RuntimeException | Error e) {
+            opening.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            openings.remove(queueId, opening);
+        }
+    }
+
+    // The threads waiting for a queue get the failure of its creation as it is
+    private static <Q> Q join(CompletableFuture<Q> future) {
+        try {
+            return future.join();
+        }
+        catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw e;
+        }
+    }
+
+    @Override
+    public MessageQueue deleteQueue(String queueId) {
+        Q queue = idToQueue.remove(queueId);
+        selector.unregister(queueId);
+        if (queue != null) {
+            queue.close();
+            if (mbeanServiceName != null)
+                unregisterMBean(queueObjectName(queueId));
+        }
+        return queue;
+    }
+
+    @Override
+    public Subscription subscribe(String queueId, MessageHandler handler, int concurrency, int prefetch) {
+        Subscription subscription = new Subscription(getQueue(queueId), handler, concurrency, prefetch) {
+            @Override
+            public void close() {
+                super.close();
+                subscriptions.remove(this);
+            }
+        };
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    @Override
+    public Map<String, List<Message>> pullAny(Collection<String> queueIds, int max, long timeout, TimeUnit unit) {
+        Set<String> ids = queueIds instanceof Set ? (Set<String>) queueIds : new HashSet<>(queueIds);
+        for (String queueId : ids) {
+            if (!selector.isRegistered(queueId))
+                selector.register(queueId, getQueue(queueId));
+        }
+        return selector.pull(ids, max, timeout, unit);
+    }
+
+    @Override
+    public void shutdown() {
+        for (Subscription subscription : subscriptions)
+            subscription.close();
+        subscriptions.clear();
+        selector.clear();
+        for (Map.Entry<String, Q> entry : idToQueue.entrySet()) {
+            entry.getValue().close();
+            if (mbeanServiceName != null)
+                unregisterMBean(queueObjectName(entry.getKey()));
+        }
+        if (mbeanServiceName != null)
+            unregisterMBean(serviceObjectName());
+    }
+
+    @Override
+    public QueueMetrics getMetrics() {
+        QueueMetrics metrics = new QueueMetrics();
+        for (Q queue : idToQueue.values())
+            metrics.add(queue.getMetrics());
+        return metrics;
+    }
+
+    public void registerMBeans(String serviceName) {
+        mbeanServiceName = serviceName;
+        registerMBean(serviceObjectName(), new ServiceMetrics());
+        for (Map.Entry<String, Q> entry : idToQueue.entrySet())
+            registerMBean(queueObjectName(entry.getKey()), entry.getValue().getMetrics());
+    }
+
+    private ObjectName serviceObjectName() {
+        return objectName("namespace:type=QueueService,name=" + ObjectName.quote(mbeanServiceName));
+    }
+
+    private ObjectName queueObjectName(String queueId) {
+        return objectName("namespace:type=Queue,service=" + ObjectName.quote(mbeanServiceName)
+                + ",name=" + ObjectName.quote(queueId));
+    }
+
+    private static ObjectName objectName(String name) {
+        try {
+            return new ObjectName(name);
+        }
+        catch (JMException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static void registerMBean(ObjectName name, Object mbean) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(mbean, name);
+        }
+        catch (JMException e) {
+            throw new IllegalStateException("Cannot register MBean " + name, e);
+        }
+    }
+
+    private static void unregisterMBean(ObjectName name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+        }
+        catch (JMException e) {
+            throw new IllegalStateException("Cannot unregister MBean " + name, e);
+        }
+    }
+
+    // Aggregates the metrics of the queues each time it is read
+    private class ServiceMetrics implements QueueMetricsMXBean {
+        @Override
+        public long getPushCount() {
+            return getMetrics().getPushCount();
+        }
+
+        @Override
+        public long getPullCount() {
+            return getMetrics().getPullCount();
+        }
+
+        @Override
+        public long getDeleteCount() {
+            return getMetrics().getDeleteCount();
+        }
+
+        @Override
+        public long getRedeliveryCount() {
+            return getMetrics().getRedeliveryCount();
+        }
+
+        @Override
+        public long getDuplicateCount() {
+            return getMetrics().getDuplicateCount();
+        }
+
+        @Override
+        public long getDepth() {
+            return getMetrics().getDepth();
+        }
+
+        @Override
+        public long getInFlightCount() {
+            return getMetrics().getInFlightCount();
+        }
+
+        @Override
+        public long getPushToPullLatencyP50() {
+            return getMetrics().getPushToPullLatencyP50();
+        }
+
+        @Override
+        public long getPushToPullLatencyP99() {
+            return getMetrics().getPushToPullLatencyP99();
+        }
+
+        @Override
+        public long getPushToPullLatencyMax() {
+            return getMetrics().getPushToPullLatencyMax();
+        }
+
+        @Override
+        public long getLockWaitP50() {
+            return getMetrics().getLockWaitP50();
+        }
+
+        @Override
+        public long getLockWaitP99() {
+            return getMetrics().getLockWaitP99();
+        }
+
+        @Override
+        public long getLockWaitMax() {
+            return getMetrics().getLockWaitMax();
+        }
+    }
+}
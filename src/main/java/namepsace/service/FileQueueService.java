@@ -1,17 +1,19 @@
 package namespace.service;
 
-import java.util.HashMap;
-import java.util.Map;
-
-import namespace.model.MessageQueue;
 import namespace.model.FileQueue;
+import namespace.model.FileQueueDirectory;
+import namespace.model.FsyncPolicy;
+import namespace.model.VisibilityScheduler;
 
-public class FileQueueService implements QueueService {
-    private Map<String, FileQueue> idToQueue;
+public class FileQueueService extends AbstractQueueService<FileQueue> {
+    private VisibilityScheduler scheduler;
+    private FileQueueDirectory directory;
     private String queuesDirName = "./";
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.OS;
+    private long fsyncInterval = 0;
 
     public FileQueueService() {
-        idToQueue = new HashMap<>();
+        scheduler = new VisibilityScheduler();
     }
 
     public FileQueueService(String queuesDirName) {
@@ -19,30 +21,32 @@ public class FileQueueService implements QueueService {
         this.queuesDirName = queuesDirName;
     }
 
-    @Override
-    public MessageQueue getQueue(String queueId) {
-        FileQueue queue = idToQueue.get(queueId);
-        if (queue == null) {
-            queue = new FileQueue(queueId, queuesDirName);
-            idToQueue.put(queueId, queue);
-        }
-        return queue;
+    // The fsync interval is in milliseconds, and only used by the INTERVAL policy
+    public FileQueueService(String queuesDirName, FsyncPolicy fsyncPolicy, long fsyncInterval) {
+        this(queuesDirName);
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncInterval = fsyncInterval;
+    }
+
+    // Created along with the first queue, then shared by all of them
+    private synchronized FileQueueDirectory directory() {
+        if (directory == null)
+            directory = new FileQueueDirectory(queuesDirName, scheduler);
+        return directory;
     }
 
     @Override
-    public MessageQueue deleteQueue(String queueId) {
-        FileQueue queue = idToQueue.get(queueId);
-        if (queue != null) {
-            queue.close();
-            idToQueue.remove(queueId);
-        }
-        return queue;
+    protected FileQueue createQueue(String queueId) {
+        return new FileQueue(queueId, directory(), fsyncPolicy, fsyncInterval);
     }
 
     @Override
     public void shutdown() {
-        for (FileQueue queue : idToQueue.values()) {
-            queue.close();
+        super.shutdown();
+        scheduler.shutdown();
+        synchronized (this) {
+            if (directory != null)
+                directory.close();
         }
     }
 }
@@ -1,42 +1,30 @@
 package namespace.service;
 
-import java.util.HashMap;
-import java.util.Map;
-
-import namespace.model.MessageQueue;
 import namespace.model.InMemoryQueue;
+import namespace.model.VisibilityScheduler;
 
-public class InMemoryQueueService implements QueueService {
-    private Map<String, InMemoryQueue> idToQueue;
+public class InMemoryQueueService extends AbstractQueueService<InMemoryQueue> {
+    private VisibilityScheduler scheduler;
+    private int shardCount;
 
     public InMemoryQueueService() {
-        idToQueue = new HashMap<>();
+        this(1);
     }
 
-    @Override
-    public MessageQueue getQueue(String queueId) {
-        InMemoryQueue queue = idToQueue.get(queueId);
-        if (queue == null) {
-            queue = new InMemoryQueue();
-            idToQueue.put(queueId, queue);
-        }
-        return queue;
+    // Splits each queue in shards, around one per core for contended queues
+    public InMemoryQueueService(int shardCount) {
+        scheduler = new VisibilityScheduler();
+        this.shardCount = shardCount;
     }
 
     @Override
-    public MessageQueue deleteQueue(String queueId) {
-        InMemoryQueue queue = idToQueue.get(queueId);
-        if (queue != null) {
-            queue.close();
-            idToQueue.remove(queueId);
-        }
-        return queue;
+    protected InMemoryQueue createQueue(String queueId) {
+        return new InMemoryQueue(scheduler, shardCount);
     }
 
     @Override
     public void shutdown() {
-        for (InMemoryQueue queue : idToQueue.values()) {
-            queue.close();
-        }
+        super.shutdown();
+        scheduler.shutdown();
     }
 }
@@ -0,0 +1,623 @@
+package namespace.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import namespace.model.Handle;
+import namespace.model.Message;
+import namespace.model.MessageQueue;
+
+/*
+ * In-process stand-in for SQS, so that the SqsQueueService can be tested and benchmarked without a network or credentials.
+ * It speaks the query protocol of the AWS SDK over HTTP on the loopback interface: point the client at getEndpoint().
+ * Supported actions: CreateQueue, GetQueueUrl, DeleteQueue, GetQueueAttributes, SetQueueAttributes,
+ * SendMessage(Batch), ReceiveMessage and DeleteMessage(Batch). Requests are not authenticated.
+ * Each SQS queue is an InMemoryQueue, which provides the visibility timeouts, delays and long polling,
+ * its receipt handles being the ones of the InMemoryQueue.
+ * An SQS message is stored as the binary body of a Message, along with its ID, sent timestamp and message attributes.
+ * The MD5 digests of the bodies and message attributes are computed as SQS does, since the SDK checks them.
+ * The visibility timeout is the one of the queue: the VisibilityTimeout of a ReceiveMessage is ignored.
+ * FIFO queues map MessageGroupId to the message groups of the InMemoryQueue, so a receive returns one message per group.
+ * Their MessageDeduplicationId, or the digest of the body with ContentBasedDeduplication, is the deduplication ID
+ * of the InMemoryQueue message, so the duplicates are dropped over the window of the InMemoryQueue, 5 minutes as in SQS.
+ * setLatency() delays every response, to get closer to the round trips of the real service.
+ */
+
+public class LocalSqsServer {
+    private static final String queuePath = "/queue/";
+    private static final int maxBatchSize = 10;
+    private static final int maxDelaySeconds = 900;
+    private static final String defaultVisibilityTimeout = "30";
+    private HttpServer server;
+    private ExecutorService executor;
+    private InMemoryQueueService queues = new InMemoryQueueService();
+    // The attributes of the existing queues, by queue name
+    private Map<String, Map<String, String>> queueAttributes = new ConcurrentHashMap<>();
+    private volatile long latencyNanos = 0;
+
+    private static class SqsException extends RuntimeException {
+        private String code;
+
+        public SqsException(String code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    // An SQS message, as stored in the body of an InMemoryQueue Message
+    private static class StoredMessage {
+        private String messageId;
+        private long sentTimestamp;
+        private String body;
+        private SortedMap<String, MessageAttributeValue> attributes = new TreeMap<>();
+
+        private ByteBuffer encode() {
+            byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+            byte[] idBytes = messageId.getBytes(StandardCharsets.UTF_8);
+            List<byte[]> parts = new ArrayList<>();
+            int size = 8 + 4 + idBytes.length + 4 + bodyBytes.length + 4;
+            for (Map.Entry<String, MessageAttributeValue> attribute : attributes.entrySet()) {
+                MessageAttributeValue value = attribute.getValue();
+                parts.add(attribute.getKey().getBytes(StandardCharsets.UTF_8));
+                parts.add(value.getDataType().getBytes(StandardCharsets.UTF_8));
+                parts.add(value.getStringValue() != null ? value.getStringValue().getBytes(StandardCharsets.UTF_8)
+                        : bytesOf(value.getBinaryValue()));
+                size += 1;
+            }
+            for (byte[] part : parts)
+                size += 4 + part.length;
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            buffer.putLong(sentTimestamp);
+            putBytes(buffer, idBytes);
+            putBytes(buffer, bodyBytes);
+            buffer.putInt(attributes.size());
+            int i = 0;
+            for (MessageAttributeValue value : attributes.values()) {
+                buffer.put((byte) (value.getStringValue() != null ? 1 : 2));
+                putBytes(buffer, parts.get(i++));
+                putBytes(buffer, parts.get(i++));
+                putBytes(buffer, parts.get(i++));
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        private static StoredMessage decode(ByteBuffer buffer) {
+            StoredMessage message = new StoredMessage();
+            message.sentTimestamp = buffer.getLong();
+            message.messageId = getString(buffer);
+            message.body = getString(buffer);
+            for (int count = buffer.getInt(); count > 0; --count) {
+                boolean string = buffer.get() == 1;
+                String name = getString(buffer);
+                MessageAttributeValue value = new MessageAttributeValue().withDataType(getString(buffer));
+                if (string)
+                    value.setStringValue(getString(buffer));
+                else
+                    value.setBinaryValue(ByteBuffer.wrap(getBytes(buffer)));
+                message.attributes.put(name, value);
+            }
+            return message;
+        }
+
+        private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+            buffer.putInt(bytes.length).put(bytes);
+        }
+
+        private static byte[] getBytes(ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return bytes;
+        }
+
+        private static String getString(ByteBuffer buffer) {
+            return new String(getBytes(buffer), StandardCharsets.UTF_8);
+        }
+    }
+
+    // Port 0 picks a free port
+    public LocalSqsServer(int port) {
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "local-sqs");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleRequest(exchange);
+            }
+        });
+        server.start();
+    }
+
+    public String getEndpoint() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    // Added to every response
+    public void setLatency(long latency, TimeUnit unit) {
+        latencyNanos = unit.toNanos(latency);
+    }
+
+    public void shutdown() {
+        server.stop(0);
+        executor.shutdownNow();
+        queues.shutdown();
+    }
+
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        int status = 200;
+        String response;
+        try {
+            Map<String, String> parameters = new HashMap<>();
+            parseParameters(exchange.getRequestURI().getRawQuery(), parameters);
+            parseParameters(new String(readFully(exchange.getRequestBody()), StandardCharsets.UTF_8), parameters);
+            String action = parameters.get("Action");
+            if (action == null)
+                throw new SqsException("MissingAction", "The request must contain the parameter Action");
+            if (latencyNanos > 0)
+                TimeUnit.NANOSECONDS.sleep(latencyNanos);
+            String result = execute(action, queueName(exchange.getRequestURI().getPath(), parameters), parameters);
+            response = "<" + action + "Response>" + (result == null ? "" : "<" + action + "Result>" + result + "</" + action + "Result>")
+                    + "<ResponseMetadata><RequestId>" + UUID.randomUUID() + "</RequestId></ResponseMetadata></" + action + "Response>";
+        }
+        catch (SqsException e) {
+            status = 400;
+            response = "<ErrorResponse><Error><Type>Sender</Type><Code>" + e.code + "</Code><Message>" + escape(e.getMessage())
+                    + "</Message><Detail/></Error><RequestId>" + UUID.randomUUID() + "</RequestId></ErrorResponse>";
+        }
+        catch (InterruptedException e) {
+            // Shutting down
+            exchange.close();
+            return;
+        }
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/xml");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // Returns the content of the Result element, or null for the actions without one
+    private String execute(String action, String queueName, Map<String, String> parameters) throws InterruptedException {
+        switch (action) {
+            case "CreateQueue":
+                return createQueue(required(parameters, "QueueName"), parameters);
+            case "GetQueueUrl":
+                return "<QueueUrl>" + queueUrl(existing(required(parameters, "QueueName"))) + "</QueueUrl>";
+            case "DeleteQueue":
+                queues.deleteQueue(existing(queueName));
+                queueAttributes.remove(queueName);
+                return null;
+            case "GetQueueAttributes":
+                return getQueueAttributes(existing(queueName), indexed(parameters, "AttributeName."));
+            case "SetQueueAttributes":
+                setQueueAttributes(existing(queueName), parameters);
+                return null;
+            case "SendMessage":
+                return sendMessage(existing(queueName), parameters, "");
+            case "SendMessageBatch":
+                return sendMessageBatch(existing(queueName), parameters);
+            case "ReceiveMessage":
+                return receiveMessage(existing(queueName), parameters);
+            case "DeleteMessage":
+                deleteMessage(existing(queueName), required(parameters, "ReceiptHandle"));
+                return null;
+            case "DeleteMessageBatch":
+                return deleteMessageBatch(existing(queueName), parameters);
+            default:
+                throw new SqsException("InvalidAction", "The action " + action + " is not valid for this endpoint");
+        }
+    }
+
+    private String queueUrl(String queueName) {
+        return getEndpoint() + queuePath + queueName;
+    }
+
+    // The SDK sends the queue URL as the request path, older clients as a parameter
+    private static String queueName(String path, Map<String, String> parameters) {
+        String queueUrl = parameters.get("QueueUrl");
+        if (queueUrl != null)
+            path = queueUrl.substring(queueUrl.indexOf(queuePath) < 0 ? 0 : queueUrl.indexOf(queuePath));
+        return path.startsWith(queuePath) ? path.substring(queuePath.length()) : null;
+    }
+
+    private String existing(String queueName) {
+        if (queueName == null || !queueAttributes.containsKey(queueName))
+            throw new SqsException("AWS.SimpleQueueService.NonExistentQueue", "The specified queue does not exist");
+        return queueName;
+    }
+
+    private static String required(Map<String, String> parameters, String name) {
+        String value = parameters.get(name);
+        if (value == null)
+            throw new SqsException("MissingParameter", "The request must contain the parameter " + name);
+        return value;
+    }
+
+    // The values of prefix1, prefix2... in order
+    private static List<String> indexed(Map<String, String> parameters, String prefix) {
+        List<String> values = new ArrayList<>();
+        String value;
+        for (int i = 1; (value = parameters.get(prefix + i)) != null; ++i)
+            values.add(value);
+        return values;
+    }
+
+    // The Attribute.N.Name and Attribute.N.Value pairs
+    private static Map<String, String> namedValues(Map<String, String> parameters, String prefix) {
+        Map<String, String> values = new LinkedHashMap<>();
+        String name;
+        for (int i = 1; (name = parameters.get(prefix + i + ".Name")) != null; ++i)
+            values.put(name, required(parameters, prefix + i + ".Value"));
+        return values;
+    }
+
+    private String createQueue(String queueName, Map<String, String> parameters) {
+        Map<String, String> attributes = new ConcurrentHashMap<>();
+        attributes.put("VisibilityTimeout", defaultVisibilityTimeout);
+        attributes.put("DelaySeconds", "0");
+        attributes.put("ReceiveMessageWaitTimeSeconds", "0");
+        attributes.putAll(namedValues(parameters, "Attribute."));
+        checkDelayAttribute(attributes);
+        if (queueName.endsWith(".fifo") != "true".equals(attributes.get("FifoQueue")))
+            throw new SqsException("InvalidParameterValue", "Only the names of FIFO queues, and all of them, end with .fifo");
+        // Creating an existing queue returns it as it is
+        if (queueAttributes.putIfAbsent(queueName, attributes) == null)
+            queues.getQueue(queueName).setVisibilityTimeout(intAttribute(attributes, "VisibilityTimeout"));
+        return "<QueueUrl>" + queueUrl(queueName) + "</QueueUrl>";
+    }
+
+    private static int intAttribute(Map<String, String> attributes, String name) {
+        try {
+            return Integer.parseInt(attributes.get(name));
+        }
+        catch (NumberFormatException e) {
+            throw new SqsException("InvalidAttributeValue", "Invalid value for the parameter " + name);
+        }
+    }
+
+    // SQS rejects delays of more than 15 minutes, as attributes of the queue as well as parameters of the messages
+    private static void checkDelayAttribute(Map<String, String> attributes) {
+        int delaySeconds = intAttribute(attributes, "DelaySeconds");
+        if (delaySeconds < 0 || delaySeconds > maxDelaySeconds)
+            throw new SqsException("InvalidAttributeValue", "DelaySeconds must be between 0 and " + maxDelaySeconds);
+    }
+
+    private String getQueueAttributes(String queueName, List<String> names) {
+        Map<String, String> attributes = queueAttributes.get(queueName);
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            if (names.contains("All") || names.contains(attribute.getKey()))
+                result.append("<Attribute><Name>").append(attribute.getKey()).append("</Name><Value>")
+                        .append(escape(attribute.getValue())).append("</Value></Attribute>");
+        }
+        return result.toString();
+    }
+
+    private void setQueueAttributes(String queueName, Map<String, String> parameters) {
+        Map<String, String> attributes = queueAttributes.get(queueName);
+        Map<String, String> updated = namedValues(parameters, "Attribute.");
+        if (updated.containsKey("DelaySeconds"))
+            checkDelayAttribute(updated);
+        attributes.putAll(updated);
+        if (updated.containsKey("VisibilityTimeout"))
+            queues.getQueue(queueName).setVisibilityTimeout(intAttribute(attributes, "VisibilityTimeout"));
+    }
+
+    // The parameters of the message start with prefix, empty for SendMessage
+    private String sendMessage(String queueName, Map<String, String> parameters, String prefix) {
+        StoredMessage message = new StoredMessage();
+        message.messageId = UUID.randomUUID().toString();
+        message.sentTimestamp = System.currentTimeMillis();
+        message.body = required(parameters, prefix + "MessageBody");
+        String name;
+        for (int i = 1; (name = parameters.get(prefix + "MessageAttribute." + i + ".Name")) != null; ++i) {
+            String valuePrefix = prefix + "MessageAttribute." + i + ".Value.";
+            MessageAttributeValue value = new MessageAttributeValue().withDataType(required(parameters, valuePrefix + "DataType"));
+            String binary = parameters.get(valuePrefix + "BinaryValue");
+            if (binary != null)
+                value.setBinaryValue(ByteBuffer.wrap(Base64.getDecoder().decode(binary)));
+            else
+                value.setStringValue(required(parameters, valuePrefix + "StringValue"));
+            message.attributes.put(name, value);
+        }
+        String delay = parameters.get(prefix + "DelaySeconds");
+        int delaySeconds = delay != null ? Integer.parseInt(delay) : intAttribute(queueAttributes.get(queueName), "DelaySeconds");
+        if (delaySeconds < 0 || delaySeconds > maxDelaySeconds)
+            throw new SqsException("InvalidParameterValue", "DelaySeconds must be between 0 and " + maxDelaySeconds);
+        Message stored = new Message(message.encode());
+        if ("true".equals(queueAttributes.get(queueName).get("FifoQueue"))) {
+            if (delay != null)
+                throw new SqsException("InvalidParameterValue", "FIFO queues do not support per message delays");
+            stored.setGroupId(required(parameters, prefix + "MessageGroupId"));
+            String deduplicationId = parameters.get(prefix + "MessageDeduplicationId");
+            if (deduplicationId == null && "true".equals(queueAttributes.get(queueName).get("ContentBasedDeduplication"))) {
+                Message content = new Message(message.body);
+                content.deduplicateByContent();
+                deduplicationId = content.getDeduplicationId();
+            }
+            if (deduplicationId == null)
+                throw new SqsException("InvalidParameterValue",
+                        "The queue should either have ContentBasedDeduplication enabled or MessageDeduplicationId provided explicitly");
+            stored.setDeduplicationId(deduplicationId);
+        }
+        queues.getQueue(queueName).push(stored, delaySeconds, TimeUnit.SECONDS);
+
+        StringBuilder result = new StringBuilder();
+        result.append("<MD5OfMessageBody>").append(md5(message.body.getBytes(StandardCharsets.UTF_8))).append("</MD5OfMessageBody>");
+        if (!message.attributes.isEmpty())
+            result.append("<MD5OfMessageAttributes>").append(md5OfAttributes(message.attributes)).append("</MD5OfMessageAttributes>");
+        result.append("<MessageId>").append(message.messageId).append("</MessageId>");
+        return result.toString();
+    }
+
+    private String sendMessageBatch(String queueName, Map<String, String> parameters) {
+        StringBuilder result = new StringBuilder();
+        for (String prefix : batchEntries(parameters, "SendMessageBatchRequestEntry.")) {
+            String id = parameters.get(prefix + "Id");
+            try {
+                result.append("<SendMessageBatchResultEntry><Id>").append(escape(id)).append("</Id>")
+                        .append(sendMessage(queueName, parameters, prefix)).append("</SendMessageBatchResultEntry>");
+            }
+            catch (SqsException e) {
+                result.append(batchError(id, e));
+            }
+        }
+        return result.toString();
+    }
+
+    // The prefixes of the entries of a batch action, which must be between 1 and 10 with distinct IDs
+    private static List<String> batchEntries(Map<String, String> parameters, String prefix) {
+        List<String> prefixes = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        String id;
+        for (int i = 1; (id = parameters.get(prefix + i + ".Id")) != null; ++i) {
+            if (ids.contains(id))
+                throw new SqsException("AWS.SimpleQueueService.BatchEntryIdsNotDistinct", "Two entries have the ID " + id);
+            ids.add(id);
+            prefixes.add(prefix + i + ".");
+        }
+        if (prefixes.isEmpty())
+            throw new SqsException("AWS.SimpleQueueService.EmptyBatchRequest", "The batch request does not contain any entry");
+        if (prefixes.size() > maxBatchSize)
+            throw new SqsException("AWS.SimpleQueueService.TooManyEntriesInBatchRequest",
+                    "The batch request contains more than " + maxBatchSize + " entries");
+        return prefixes;
+    }
+
+    private static String batchError(String id, SqsException e) {
+        return "<BatchResultErrorEntry><Id>" + escape(id) + "</Id><SenderFault>true</SenderFault><Code>" + e.code
+                + "</Code><Message>" + escape(e.getMessage()) + "</Message></BatchResultErrorEntry>";
+    }
+
+    private String receiveMessage(String queueName, Map<String, String> parameters) throws InterruptedException {
+        MessageQueue queue = queues.getQueue(queueName);
+        String max = parameters.get("MaxNumberOfMessages");
+        int maxNumberOfMessages = max == null ? 1 : Integer.parseInt(max);
+        if (maxNumberOfMessages < 1 || maxNumberOfMessages > maxBatchSize)
+            throw new SqsException("InvalidParameterValue", "MaxNumberOfMessages must be between 1 and " + maxBatchSize);
+        String wait = parameters.get("WaitTimeSeconds");
+        int waitTimeSeconds = wait != null ? Integer.parseInt(wait)
+                : intAttribute(queueAttributes.get(queueName), "ReceiveMessageWaitTimeSeconds");
+
+        List<Message> messages = queue.pull(maxNumberOfMessages);
+        if (messages.isEmpty() && waitTimeSeconds > 0) {
+            Message first = queue.pull(waitTimeSeconds, TimeUnit.SECONDS);
+            if (first != null) {
+                messages = new ArrayList<>();
+                messages.add(first);
+                messages.addAll(queue.pull(maxNumberOfMessages - 1));
+            }
+        }
+
+        List<String> attributeNames = indexed(parameters, "AttributeName.");
+        List<String> messageAttributeNames = indexed(parameters, "MessageAttributeName.");
+        StringBuilder result = new StringBuilder();
+        for (Message pulled : messages) {
+            StoredMessage message = StoredMessage.decode(pulled.getBinaryBody());
+            result.append("<Message><MessageId>").append(message.messageId).append("</MessageId>");
+            result.append("<ReceiptHandle>").append(pulled.getHandle()).append("</ReceiptHandle>");
+            result.append("<MD5OfBody>").append(md5(message.body.getBytes(StandardCharsets.UTF_8))).append("</MD5OfBody>");
+            result.append("<Body>").append(escape(message.body)).append("</Body>");
+            Map<String, String> attributes = new LinkedHashMap<>();
+            attributes.put("SentTimestamp", String.valueOf(message.sentTimestamp));
+            attributes.put("ApproximateReceiveCount", String.valueOf(Handle.receiveCount(Handle.parse(pulled.getHandle()))));
+            if (pulled.getGroupId() != null)
+                attributes.put("MessageGroupId", pulled.getGroupId());
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                if (attributeNames.contains("All") || attributeNames.contains(attribute.getKey()))
+                    result.append("<Attribute><Name>").append(attribute.getKey()).append("</Name><Value>")
+                            .append(escape(attribute.getValue())).append("</Value></Attribute>");
+            }
+            SortedMap<String, MessageAttributeValue> returned = new TreeMap<>();
+            for (Map.Entry<String, MessageAttributeValue> attribute : message.attributes.entrySet()) {
+                if (selected(attribute.getKey(), messageAttributeNames))
+                    returned.put(attribute.getKey(), attribute.getValue());
+            }
+            for (Map.Entry<String, MessageAttributeValue> attribute : returned.entrySet()) {
+                MessageAttributeValue value = attribute.getValue();
+                result.append("<MessageAttribute><Name>").append(escape(attribute.getKey())).append("</Name><Value>");
+                if (value.getStringValue() != null)
+                    result.append("<StringValue>").append(escape(value.getStringValue())).append("</StringValue>");
+                else
+                    result.append("<BinaryValue>").append(Base64.getEncoder().encodeToString(bytesOf(value.getBinaryValue())))
+                            .append("</BinaryValue>");
+                result.append("<DataType>").append(escape(value.getDataType())).append("</DataType></Value></MessageAttribute>");
+            }
+            if (!returned.isEmpty())
+                result.append("<MD5OfMessageAttributes>").append(md5OfAttributes(returned)).append("</MD5OfMessageAttributes>");
+            result.append("</Message>");
+        }
+        return result.toString();
+    }
+
+    // Names can be "All", ".*", or end with ".*" to select a prefix
+    private static boolean selected(String name, List<String> names) {
+        for (String selector : names) {
+            if (selector.equals("All") || selector.equals(".*") || selector.equals(name)
+                    || (selector.endsWith(".*") && name.startsWith(selector.substring(0, selector.length() - 1))))
+                return true;
+        }
+        return false;
+    }
+
+    // Like SQS, deleting a message that is not in flight anymore succeeds
+    private void deleteMessage(String queueName, String receiptHandle) {
+        if (Handle.parse(receiptHandle) == Handle.none)
+            throw new SqsException("ReceiptHandleIsInvalid", "The receipt handle " + receiptHandle + " is not valid");
+        queues.getQueue(queueName).delete(receiptHandle);
+    }
+
+    private String deleteMessageBatch(String queueName, Map<String, String> parameters) {
+        StringBuilder result = new StringBuilder();
+        for (String prefix : batchEntries(parameters, "DeleteMessageBatchRequestEntry.")) {
+            String id = parameters.get(prefix + "Id");
+            try {
+                deleteMessage(queueName, required(parameters, prefix + "ReceiptHandle"));
+                result.append("<DeleteMessageBatchResultEntry><Id>").append(escape(id)).append("</Id></DeleteMessageBatchResultEntry>");
+            }
+            catch (SqsException e) {
+                result.append(batchError(id, e));
+            }
+        }
+        return result.toString();
+    }
+
+    private static void parseParameters(String encoded, Map<String, String> parameters) {
+        if (encoded == null || encoded.isEmpty())
+            return;
+        try {
+            for (String pair : encoded.split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals < 0)
+                    parameters.put(URLDecoder.decode(pair, "UTF-8"), "");
+                else
+                    parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                            URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0)
+            out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+
+    private static byte[] bytesOf(ByteBuffer buffer) {
+        ByteBuffer view = buffer.duplicate();
+        byte[] bytes = new byte[view.remaining()];
+        view.get(bytes);
+        return bytes;
+    }
+
+    // Carriage returns are escaped too, since XML parsers turn them into line feeds
+    private static String escape(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&': escaped.append("&amp;"); break;
+                case '<': escaped.append("&lt;"); break;
+                case '>': escaped.append("&gt;"); break;
+                case '"': escaped.append("&quot;"); break;
+                case '\'': escaped.append("&apos;"); break;
+                case '\r': escaped.append("&#13;"); break;
+                default: escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static MessageDigest md5Digest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(2 * digest.length);
+        for (byte b : digest)
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return hex.toString();
+    }
+
+    private static String md5(byte[] bytes) {
+        return hex(md5Digest().digest(bytes));
+    }
+
+    // Digest of the attributes sorted by name, each part prefixed with its length, as specified by SQS
+    private static String md5OfAttributes(SortedMap<String, MessageAttributeValue> attributes) {
+        MessageDigest digest = md5Digest();
+        for (Map.Entry<String, MessageAttributeValue> attribute : attributes.entrySet()) {
+            MessageAttributeValue value = attribute.getValue();
+            updateLengthAndBytes(digest, attribute.getKey().getBytes(StandardCharsets.UTF_8));
+            updateLengthAndBytes(digest, value.getDataType().getBytes(StandardCharsets.UTF_8));
+            if (value.getStringValue() != null) {
+                digest.update((byte) 1);
+                updateLengthAndBytes(digest, value.getStringValue().getBytes(StandardCharsets.UTF_8));
+            }
+            else {
+                digest.update((byte) 2);
+                updateLengthAndBytes(digest, bytesOf(value.getBinaryValue()));
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    private static void updateLengthAndBytes(MessageDigest digest, byte[] bytes) {
+        digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+        digest.update(bytes);
+    }
+}
@@ -0,0 +1,31 @@
+package namespace.service;
+
+import namespace.model.OffHeapQueue;
+import namespace.model.VisibilityScheduler;
+
+public class OffHeapQueueService extends AbstractQueueService<OffHeapQueue> {
+    private static final int defaultCapacity = 64 * 1024 * 1024;
+    private VisibilityScheduler scheduler;
+    private int capacity;
+
+    public OffHeapQueueService() {
+        this(defaultCapacity);
+    }
+
+    // Capacity in bytes of each queue, allocated when the queue is created
+    public OffHeapQueueService(int capacity) {
+        scheduler = new VisibilityScheduler();
+        this.capacity = capacity;
+    }
+
+    @Override
+    protected OffHeapQueue createQueue(String queueId) {
+        return new OffHeapQueue(scheduler, capacity);
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        scheduler.shutdown();
+    }
+}
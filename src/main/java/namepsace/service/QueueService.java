@@ -1,9 +1,24 @@
 package namespace.service;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import namespace.model.Message;
+import namespace.model.MessageHandler;
 import namespace.model.MessageQueue;
+import namespace.model.QueueMetrics;
+import namespace.model.Subscription;
 
 public interface QueueService {
     public MessageQueue getQueue(String queueId);
     public MessageQueue deleteQueue(String queueId);
+    public QueueMetrics getMetrics();
+    // Handles the messages of the queue with concurrency workers, see Subscription
+    public Subscription subscribe(String queueId, MessageHandler handler, int concurrency, int prefetch);
+    // Pulls up to max messages from the queues that have some, waiting up to the timeout for one of them, see QueueSelector
+    // The messages are listed by queue ID, empty if the timeout expired
+    public Map<String, List<Message>> pullAny(Collection<String> queueIds, int max, long timeout, TimeUnit unit);
     public void shutdown();
 }
@@ -0,0 +1,34 @@
+package namespace.service;
+
+import namespace.model.RingBufferQueue;
+import namespace.model.VisibilityScheduler;
+import namespace.model.WaitStrategy;
+
+public class RingBufferQueueService extends AbstractQueueService<RingBufferQueue> {
+    private static final int defaultCapacity = 64 * 1024;
+    private VisibilityScheduler scheduler;
+    private int capacity;
+    private WaitStrategy waitStrategy;
+
+    public RingBufferQueueService() {
+        this(defaultCapacity, WaitStrategy.PARK);
+    }
+
+    // Capacity in messages of each queue
+    public RingBufferQueueService(int capacity, WaitStrategy waitStrategy) {
+        scheduler = new VisibilityScheduler();
+        this.capacity = capacity;
+        this.waitStrategy = waitStrategy;
+    }
+
+    @Override
+    protected RingBufferQueue createQueue(String queueId) {
+        return new RingBufferQueue(scheduler, capacity, waitStrategy);
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        scheduler.shutdown();
+    }
+}
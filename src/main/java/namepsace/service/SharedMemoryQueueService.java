@@ -0,0 +1,43 @@
+package namespace.service;
+
+import java.io.File;
+
+import namespace.model.SharedMemoryQueue;
+import namespace.model.VisibilityScheduler;
+import namespace.model.WaitStrategy;
+
+public class SharedMemoryQueueService extends AbstractQueueService<SharedMemoryQueue> {
+    private static final int defaultCapacity = 64 * 1024;
+    private static final int defaultSlotSize = 256;
+    private VisibilityScheduler scheduler;
+    private String dirName;
+    private int capacity;
+    private int slotSize;
+    private WaitStrategy waitStrategy;
+
+    // Under /dev/shm when there is one, so that the rings stay in memory
+    public SharedMemoryQueueService() {
+        this(new File("/dev/shm").isDirectory() ? "/dev/shm/" : "./", defaultCapacity, defaultSlotSize, WaitStrategy.PARK);
+    }
+
+    // Each queue is a file under dirName, shared by the processes using the same dirName
+    // Capacity in messages of each queue, and size in bytes of its slots, bodies and headers included
+    public SharedMemoryQueueService(String dirName, int capacity, int slotSize, WaitStrategy waitStrategy) {
+        scheduler = new VisibilityScheduler();
+        this.dirName = dirName;
+        this.capacity = capacity;
+        this.slotSize = slotSize;
+        this.waitStrategy = waitStrategy;
+    }
+
+    @Override
+    protected SharedMemoryQueue createQueue(String queueId) {
+        return new SharedMemoryQueue(new File(dirName + queueId), capacity, slotSize, scheduler, waitStrategy);
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        scheduler.shutdown();
+    }
+}
@@ -1,45 +1,49 @@
 package namespace.service;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
-import com.amazonaws.services.sqs.AmazonSQSClient;
-import namespace.model.MessageQueue;
+import com.amazonaws.services.sqs.AmazonSQSAsyncClient;
+import namespace.model.BufferedSqsQueue;
 import namespace.model.SqsQueue;
 
-public class SqsQueueService implements QueueService {
-    private AmazonSQSClient sqs;
-    private Map<String, SqsQueue> idToQueue;
+public class SqsQueueService extends AbstractQueueService<SqsQueue> {
+    private AmazonSQSAsyncClient sqs;
+    private ScheduledExecutorService executor;
+    private long maxBatchOpenMs;
+    private int prefetchCount;
 
-    public SqsQueueService(AmazonSQSClient sqs) {
-        idToQueue = new HashMap<>();
+    public SqsQueueService(AmazonSQSAsyncClient sqs) {
         this.sqs = sqs;
     }
 
-    @Override
-    public MessageQueue getQueue(String queueId) {
-        SqsQueue queue = idToQueue.get(queueId);
-        if (queue == null) {
-            queue = new SqsQueue(queueId, sqs);
-            idToQueue.put(queueId, queue);
-        }
-        return queue;
+    // Buffered mode, see BufferedSqsQueue
+    public SqsQueueService(AmazonSQSAsyncClient sqs, long maxBatchOpenMs, int prefetchCount) {
+        this(sqs);
+        this.maxBatchOpenMs = maxBatchOpenMs;
+        this.prefetchCount = prefetchCount;
+        executor = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "sqs-batching");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
     @Override
-    public MessageQueue deleteQueue(String queueId) {
-        SqsQueue queue = idToQueue.get(queueId);
-        if (queue != null) {
-            queue.close();
-            idToQueue.remove(queueId);
-        }
-        return queue;
+    protected SqsQueue createQueue(String queueId) {
+        if (executor != null)
+            return new BufferedSqsQueue(queueId, sqs, executor, maxBatchOpenMs, prefetchCount);
+        return new SqsQueue(queueId, sqs);
     }
 
     @Override
     public void shutdown() {
-        for (SqsQueue queue : idToQueue.values()) {
-            queue.close();
-        }
+        super.shutdown();
+        if (executor != null)
+            executor.shutdown();
     }
 }
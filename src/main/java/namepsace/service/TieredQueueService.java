@@ -0,0 +1,68 @@
+package namespace.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import namespace.model.TieredQueue;
+import namespace.model.VisibilityScheduler;
+
+public class TieredQueueService extends AbstractQueueService<TieredQueue> {
+    private static final long defaultMemoryThreshold = 64 * 1024 * 1024;
+    private static final int backgroundThreads = 2;
+    private VisibilityScheduler scheduler;
+    private ExecutorService background;
+    private String spillDirName;
+    private long memoryThreshold;
+    // The directory created for the service by the default constructor, deleted on shutdown
+    private File tempDir;
+
+    // The queues spill to a new temporary directory, so they never meet the files of anything else
+    public TieredQueueService() {
+        this(createTempDir(), defaultMemoryThreshold);
+        tempDir = new File(spillDirName);
+    }
+
+    private static String createTempDir() {
+        try {
+            return Files.createTempDirectory("tiered-").toString() + File.separator;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Each queue spills to its own directory under spillDirName, once its memory tier holds memoryThreshold bytes
+    public TieredQueueService(String spillDirName, long memoryThreshold) {
+        scheduler = new VisibilityScheduler();
+        background = Executors.newFixedThreadPool(backgroundThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "tiered-queue-background");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.spillDirName = spillDirName;
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    @Override
+    protected TieredQueue createQueue(String queueId) {
+        return new TieredQueue(new File(spillDirName + queueId), memoryThreshold, scheduler, background);
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        scheduler.shutdown();
+        background.shutdown();
+        // Empty once its queues are closed
+        if (tempDir != null)
+            tempDir.delete();
+    }
+}
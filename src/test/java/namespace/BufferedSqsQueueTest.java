@@ -0,0 +1,32 @@
+package namespace;
+
+import java.util.concurrent.Executors;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.sqs.AmazonSQSAsyncClient;
+import namespace.service.LocalSqsServer;
+import namespace.service.SqsQueueService;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+public class BufferedSqsQueueTest extends QueueTest {
+    private static LocalSqsServer server;
+
+    @BeforeClass
+    public static void testInit() {
+        // Runs against the embedded stand-in, so that no credentials nor network are needed
+        server = new LocalSqsServer(0);
+        // Each waiting async pull holds a connection and a thread of the client
+        AmazonSQSAsyncClient sqs = new AmazonSQSAsyncClient(new BasicAWSCredentials("test", "test"),
+                new ClientConfiguration().withMaxConnections(200), Executors.newFixedThreadPool(200));
+        sqs.setEndpoint(server.getEndpoint());
+        service = new SqsQueueService(sqs, 5, 20);
+    }
+
+    @AfterClass
+    public static void testTeardown() {
+        service.shutdown();
+        server.shutdown();
+    }
+}
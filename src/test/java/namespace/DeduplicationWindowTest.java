@@ -0,0 +1,89 @@
+package namespace;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import namespace.model.DeduplicationWindow;
+import namespace.model.Message;
+import namespace.model.ProcessLock;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DeduplicationWindowTest {
+    // A single segment of 16 slots, which all the keys share
+    private static final int capacity = 16;
+    private static final long window = 1000;
+
+    private static List<Message> messages(String deduplicationId) {
+        Message message = new Message("Message " + deduplicationId);
+        message.setDeduplicationId(deduplicationId);
+        return Collections.singletonList(message);
+    }
+
+    private static boolean admitted(DeduplicationWindow deduplication, String deduplicationId, long now) {
+        return !deduplication.admit(messages(deduplicationId), now).isEmpty();
+    }
+
+    @Test
+    public void testExpiry() {
+        DeduplicationWindow deduplication = new DeduplicationWindow(capacity, window);
+        Assert.assertTrue(admitted(deduplication, "id", 0));
+        Assert.assertFalse(admitted(deduplication, "id", window - 1));
+        Assert.assertTrue(admitted(deduplication, "id", window));
+        Assert.assertFalse(admitted(deduplication, "id", window + 1));
+    }
+
+    // The ID of a push that failed is forgotten, so that its retry gets through
+    @Test
+    public void testForget() {
+        DeduplicationWindow deduplication = new DeduplicationWindow(capacity, window);
+        List<Message> failed = messages("id");
+        Assert.assertEquals(1, deduplication.admit(failed, 0).size());
+        deduplication.forget(failed, 0);
+        Assert.assertTrue(admitted(deduplication, "id", 1));
+        // Only the entry recorded at the given time is forgotten
+        deduplication.forget(failed, 0);
+        Assert.assertFalse(admitted(deduplication, "id", 2));
+    }
+
+    // Once the 16 probes of a key are all live, the oldest entry makes room
+    @Test
+    public void testEviction() {
+        DeduplicationWindow deduplication = new DeduplicationWindow(capacity, window);
+        for (int i = 0; i < capacity; ++i)
+            Assert.assertTrue(admitted(deduplication, "id" + i, i));
+        Assert.assertTrue(admitted(deduplication, "extra", capacity));
+        // The oldest ID was evicted, and evicts the next oldest when admitted again
+        Assert.assertTrue(admitted(deduplication, "id0", capacity + 1));
+        Assert.assertTrue(admitted(deduplication, "id1", capacity + 2));
+        Assert.assertFalse(admitted(deduplication, "id" + (capacity - 1), capacity + 3));
+        Assert.assertFalse(admitted(deduplication, "extra", capacity + 3));
+    }
+
+    @Test
+    public void testSharedFile() throws IOException {
+        File dir = Files.createTempDirectory("deduplication-").toFile();
+        File file = new File(dir, "deduplication");
+        ProcessLock lock = ProcessLock.forFile(new File(dir, "deduplication.lock"));
+        try {
+            DeduplicationWindow first = new DeduplicationWindow(file, lock, capacity, window);
+            DeduplicationWindow second = new DeduplicationWindow(file, lock, capacity, window);
+            Assert.assertTrue(admitted(first, "id", 0));
+            Assert.assertFalse(admitted(second, "id", 1));
+            Assert.assertTrue(admitted(second, "other", 2));
+            Assert.assertFalse(admitted(first, "other", 3));
+            List<Message> failed = messages("failed");
+            Assert.assertEquals(1, first.admit(failed, 4).size());
+            second.forget(failed, 4);
+            Assert.assertTrue(admitted(first, "failed", 5));
+        }
+        finally {
+            new File(dir, "deduplication").delete();
+            new File(dir, "deduplication.lock").delete();
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package namespace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import namespace.model.FileQueue;
+import namespace.model.FileQueueDirectory;
+import namespace.model.FsyncPolicy;
+import namespace.model.Handle;
+import namespace.model.LeaseIndex;
+import namespace.model.Message;
+import namespace.model.ProcessLock;
+import namespace.model.VisibilityScheduler;
+import namespace.service.FileQueueService;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class DurableFileQueueTest extends QueueTest {
+    private static final String testMsg = "This is a durable test message";
+    // One byte of type, then the handle, segment, position, deadline and group
+    private static final int leaseEntrySize = 1 + 8 + 8 + 8 + 8 + 8;
+
+    @BeforeClass
+    public static void testInit() {
+        service = new FileQueueService("./", FsyncPolicy.INTERVAL, 20);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                deleteRecursively(child);
+        }
+        file.delete();
+    }
+
+    // The first queue is dropped without being closed, as by a crash, and its leases are reclaimed by the next one
+    @Test
+    public void testReopen() throws IOException {
+        File dir = Files.createTempDirectory("file-queue-").toFile();
+        String dirName = dir.getPath() + File.separator;
+        VisibilityScheduler scheduler = new VisibilityScheduler();
+        FileQueueDirectory directory = new FileQueueDirectory(dirName, scheduler);
+        try {
+            directory.setVisibilityTimeout(1);
+            FileQueue queue = new FileQueue("testReopenQueue", directory);
+            queue.push(new Message(testMsg));
+            Message pulled = queue.pull();
+            Assert.assertNotNull(pulled);
+            scheduler.shutdown();
+            directory.close();
+
+            scheduler = new VisibilityScheduler();
+            directory = new FileQueueDirectory(dirName, scheduler);
+            FileQueue reopened = new FileQueue("testReopenQueue", directory);
+            Assert.assertNull(reopened.pull());
+            Message redelivered = reopened.pull(10, TimeUnit.SECONDS);
+            Assert.assertNotNull(redelivered);
+            Assert.assertEquals(testMsg, redelivered.getBody());
+            Assert.assertNotEquals(pulled.getHandle(), redelivered.getHandle());
+            Assert.assertEquals(2, Handle.receiveCount(Handle.parse(redelivered.getHandle())));
+            reopened.delete(redelivered.getHandle());
+            Assert.assertNull(reopened.pull());
+            reopened.close();
+        }
+        finally {
+            scheduler.shutdown();
+            directory.close();
+            deleteRecursively(dir);
+        }
+    }
+
+    // The index is compacted once most of its entries are dead, under a second index that has to notice it
+    @Test
+    public void testLeaseIndexCompaction() throws IOException {
+        File dir = Files.createTempDirectory("lease-index-").toFile();
+        File file = new File(dir, "leases");
+        ProcessLock lock = ProcessLock.forFile(new File(dir, "lease.lock"));
+        LeaseIndex index = new LeaseIndex(file, lock);
+        LeaseIndex other = new LeaseIndex(file, lock);
+        try {
+            List<LeaseIndex.Lease> taken = new ArrayList<>();
+            List<Long> handles = new ArrayList<>();
+            for (int i = 1; i <= 1000; ++i) {
+                taken.add(new LeaseIndex.Lease(Handle.pack(0, i, 1), i / 100, i, 1000L + i));
+                if (i > 10)
+                    handles.add(Handle.pack(0, i, 1));
+            }
+            index.take(taken);
+            Assert.assertEquals(1001, other.earliestDeadline());
+            Assert.assertEquals(990, index.release(handles).size());
+            Assert.assertEquals(10 * leaseEntrySize, file.length());
+            Assert.assertEquals(1001, other.earliestDeadline());
+            Assert.assertEquals(0, other.firstSegment());
+            Assert.assertNotNull(other.release(Handle.pack(0, 1, 1)));
+            Assert.assertEquals(1002, index.earliestDeadline());
+        }
+        finally {
+            index.close();
+            other.close();
+            deleteRecursively(dir);
+        }
+    }
+
+    // An entry torn by a crash is ignored, then overwritten by the next one
+    @Test
+    public void testLeaseIndexTornEntry() throws IOException {
+        File dir = Files.createTempDirectory("lease-index-").toFile();
+        File file = new File(dir, "leases");
+        ProcessLock lock = ProcessLock.forFile(new File(dir, "lease.lock"));
+        LeaseIndex index = new LeaseIndex(file, lock);
+        LeaseIndex reopened = null;
+        try {
+            List<LeaseIndex.Lease> taken = new ArrayList<>();
+            taken.add(new LeaseIndex.Lease(Handle.pack(0, 1, 1), 0, 0, 1000));
+            index.take(taken);
+            index.close();
+            try (RandomAccessFile torn = new RandomAccessFile(file, "rw")) {
+                torn.seek(leaseEntrySize);
+                torn.write(new byte[leaseEntrySize / 2]);
+            }
+
+            reopened = new LeaseIndex(file, lock);
+            Assert.assertEquals(1000, reopened.earliestDeadline());
+            taken.clear();
+            taken.add(new LeaseIndex.Lease(Handle.pack(0, 2, 1), 0, 100, 500));
+            reopened.take(taken);
+            Assert.assertEquals(2 * leaseEntrySize, file.length());
+            reopened.close();
+
+            reopened = new LeaseIndex(file, lock);
+            Assert.assertEquals(500, reopened.earliestDeadline());
+            Assert.assertNotNull(reopened.release(Handle.pack(0, 1, 1)));
+            Assert.assertNotNull(reopened.release(Handle.pack(0, 2, 1)));
+            Assert.assertEquals(Long.MAX_VALUE, reopened.earliestDeadline());
+        }
+        finally {
+            index.close();
+            if (reopened != null)
+                reopened.close();
+            deleteRecursively(dir);
+        }
+    }
+}
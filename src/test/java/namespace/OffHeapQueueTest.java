@@ -0,0 +1,23 @@
+package namespace;
+
+import namespace.service.OffHeapQueueService;
+import org.junit.BeforeClass;
+
+public class OffHeapQueueTest extends QueueTest {
+
+    @BeforeClass
+    public static void testInit() {
+        // Small enough for the records to wrap around the ring
+        service = new OffHeapQueueService(4096);
+    }
+
+    @Override
+    protected boolean supportsMessageGroups() {
+        return false;
+    }
+
+    @Override
+    protected boolean supportsDeduplication() {
+        return false;
+    }
+}
@@ -1,17 +1,29 @@
 package namespace;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import namespace.model.Message;
+import namespace.model.MessageHandler;
 import namespace.model.MessageQueue;
+import namespace.model.QueueMetrics;
+import namespace.model.Subscription;
 import namespace.service.QueueService;
 import org.junit.AfterClass;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -20,6 +32,9 @@ public abstract class QueueTest {
     private static final int shortTimeoutInSeconds = 1;
     private static final int longTimeoutInSeconds = 10;
     private static final String testQueueId = "testQueue";
+    private static final String testOtherQueueId = "testOtherQueue";
+    // SQS only supports groups on FIFO queues, whose names end with .fifo
+    private static final String testGroupQueueId = "testGroupQueue.fifo";
     private static final String testMsg1 = "This is test message 1";
     private static final String testMsg2 = "This is test message 2";
 
@@ -45,7 +60,7 @@ public abstract class QueueTest {
         public Void call() {
             Message message;
             do {
-                message = queue.pull();
+                message = queue.pull(longTimeoutInSeconds, TimeUnit.SECONDS);
             } while(message == null);
             queue.delete(message.getHandle());
             return null;
@@ -115,6 +130,361 @@ public abstract class QueueTest {
         queue.delete(msg.getHandle());
     }
 
+    @Test
+    public void testStaleDelete() {
+        MessageQueue queue = service.getQueue(testQueueId);
+        queue.setVisibilityTimeout(shortTimeoutInSeconds);
+
+        queue.push(new Message(testMsg1));
+        Message first = queue.pull(longTimeoutInSeconds, TimeUnit.SECONDS);
+        // Redelivered once the visibility timeout expires
+        Message second = queue.pull(longTimeoutInSeconds, TimeUnit.SECONDS);
+        Assert.assertEquals(testMsg1, second.getBody());
+        Assert.assertNotEquals(first.getHandle(), second.getHandle());
+
+        // The late delete of the first consumer misses the second delivery, which comes back once it expires
+        queue.delete(first.getHandle());
+        Message third = queue.pull(longTimeoutInSeconds, TimeUnit.SECONDS);
+        Assert.assertEquals(testMsg1, third.getBody());
+        queue.delete(third.getHandle());
+        Assert.assertTrue(queue.pull() == null);
+    }
+
+    @Test
+    public void testDelayedMessage() {
+        MessageQueue queue = service.getQueue(testQueueId);
+        queue.setVisibilityTimeout(longTimeoutInSeconds);
+
+        queue.push(new Message(testMsg1), shortTimeoutInSeconds, TimeUnit.SECONDS);
+        Assert.assertTrue(queue.pull() == null);
+
+        // Let's wait for the delay to expire
+        try { Thread.sleep(shortTimeoutInSeconds * 1000 * 2); }
+        catch (InterruptedException e) { e.printStackTrace(); }
+        Message msg = queue.pull();
+        Assert.assertTrue(msg != null);
+        Assert.assertEquals(testMsg1, msg.getBody());
+        queue.delete(msg.getHandle());
+        Assert.assertTrue(queue.pull() == null);
+    }
+
+    // The backends that ignore the message groups skip their test
+    protected boolean supportsMessageGroups() {
+        return true;
+    }
+
+    private static Message groupMessage(String groupId, String body) {
+        Message message = new Message(body);
+        message.setGroupId(groupId);
+        return message;
+    }
+
+    @Test
+    public void testMessageGroups() {
+        Assume.assumeTrue(supportsMessageGroups());
+        MessageQueue queue = service.getQueue(testGroupQueueId);
+        queue.setVisibilityTimeout(shortTimeoutInSeconds);
+
+        // A message redelivered stays ahead of the rest of its group
+        queue.push(groupMessage("a", "a1"));
+        queue.push(groupMessage("a", "a2"));
+        Message msg = queue.pull(longTimeoutInSeconds, TimeUnit.SECONDS);
+        Assert.assertEquals("a1", msg.getBody());
+        Assert.assertEquals("a", msg.getGroupId());
+        Assert.assertTrue(queue.pull() == null);
+        msg = queue.pull(longTimeoutInSeconds, TimeUnit.SECONDS);
+        Assert.assertEquals("a1", msg.getBody());
+        queue.delete(msg.getHandle());
+        msg = queue.pull(longTimeoutInSeconds, TimeUnit.SECONDS);
+        Assert.assertEquals("a2", msg.getBody());
+        queue.delete(msg.getHandle());
+
+        // The groups are delivered in parallel, each one in order
+        queue.setVisibilityTimeout(longTimeoutInSeconds);
+        queue.pushBatch(Arrays.asList(groupMessage("a", "a1"), groupMessage("b", "b1"),
+                groupMessage("a", "a2"), groupMessage("b", "b2")));
+        Message first = queue.pull(longTimeoutInSeconds, TimeUnit.SECONDS);
+        Message second = queue.pull(longTimeoutInSeconds, TimeUnit.SECONDS);
+        Assert.assertTrue(first != null && second != null);
+        if (first.getGroupId().equals("b")) {
+            Message swapped = first;
+            first = second;
+            second = swapped;
+        }
+        Assert.assertEquals("a1", first.getBody());
+        Assert.assertEquals("b1", second.getBody());
+        Assert.assertTrue(queue.pull() == null);
+        queue.delete(first.getHandle());
+        msg = queue.pull(longTimeoutInSeconds, TimeUnit.SECONDS);
+        Assert.assertEquals("a2", msg.getBody());
+        queue.delete(msg.getHandle());
+        queue.delete(second.getHandle());
+        msg = queue.pull(longTimeoutInSeconds, TimeUnit.SECONDS);
+        Assert.assertEquals("b2", msg.getBody());
+        queue.delete(msg.getHandle());
+        Assert.assertTrue(queue.pull() == null);
+        service.deleteQueue(testGroupQueueId);
+    }
+
+    // The backends that do not deduplicate skip their test
+    protected boolean supportsDeduplication() {
+        return true;
+    }
+
+    @Test
+    public void testDeduplication() {
+        Assume.assumeTrue(supportsDeduplication());
+        // SQS only deduplicates on FIFO queues, where every message has a group
+        MessageQueue queue = service.getQueue(testGroupQueueId);
+        queue.setVisibilityTimeout(longTimeoutInSeconds);
+
+        Message first = groupMessage("a", testMsg1);
+        first.setDeduplicationId("1");
+        Message retry = groupMessage("a", testMsg1);
+        retry.setDeduplicationId("1");
+        queue.push(first);
+        queue.push(retry);
+        Message second = groupMessage("a", testMsg2);
+        second.deduplicateByContent();
+        Message copy = groupMessage("a", testMsg2);
+        copy.deduplicateByContent();
+        queue.pushBatch(Arrays.asList(second, copy));
+
+        Message msg = queue.pull(longTimeoutInSeconds, TimeUnit.SECONDS);
+        Assert.assertEquals(testMsg1, msg.getBody());
+        queue.delete(msg.getHandle());
+        msg = queue.pull(longTimeoutInSeconds, TimeUnit.SECONDS);
+        Assert.assertEquals(testMsg2, msg.getBody());
+        queue.delete(msg.getHandle());
+        Assert.assertTrue(queue.pull() == null);
+        service.deleteQueue(testGroupQueueId);
+    }
+
+    @Test
+    public void testMessageBodyWithSeparators() {
+        MessageQueue queue = service.getQueue(testQueueId);
+        queue.setVisibilityTimeout(longTimeoutInSeconds);
+
+        String body = "first line|second\nline\r\n|";
+        queue.push(new Message(body));
+        Message msg = queue.pull();
+        Assert.assertTrue(msg != null);
+        queue.delete(msg.getHandle());
+        Assert.assertEquals(body, msg.getBody());
+    }
+
+    @Test
+    public void testBinaryMessage() {
+        MessageQueue queue = service.getQueue(testQueueId);
+        queue.setVisibilityTimeout(longTimeoutInSeconds);
+
+        byte[] body = new byte[256];
+        for (int i = 0; i < body.length; ++i)
+            body[i] = (byte) i;
+        queue.push(new Message(body));
+        Message msg = queue.pull();
+        Assert.assertTrue(msg != null);
+        queue.delete(msg.getHandle());
+        Assert.assertTrue(msg.isBinary());
+        Assert.assertEquals(ByteBuffer.wrap(body), msg.getBinaryBody());
+    }
+
+    @Test
+    public void testBatchSendAndReceive() {
+        MessageQueue queue = service.getQueue(testQueueId);
+        queue.setVisibilityTimeout(longTimeoutInSeconds);
+
+        queue.pushBatch(Arrays.asList(new Message(testMsg1), new Message(testMsg2), new Message(testMsg1)));
+
+        // Batches may come back smaller than requested
+        List<Message> messages = new ArrayList<>();
+        for (int attempt = 0; attempt < 10 && messages.size() < 3; ++attempt)
+            messages.addAll(queue.pull(10));
+        Assert.assertEquals(3, messages.size());
+
+        List<String> handles = new ArrayList<>();
+        for (Message message : messages)
+            handles.add(message.getHandle());
+        queue.deleteBatch(handles);
+        Assert.assertTrue(queue.pull() == null);
+    }
+
+    @Test
+    public void testWaitingPull() throws InterruptedException {
+        final MessageQueue queue = service.getQueue(testQueueId);
+        queue.setVisibilityTimeout(longTimeoutInSeconds);
+
+        // Nothing to pull, the whole timeout is waited
+        long start = System.nanoTime();
+        Assert.assertTrue(queue.pull(shortTimeoutInSeconds, TimeUnit.SECONDS) == null);
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(shortTimeoutInSeconds));
+
+        // The waiting consumer gets the message as soon as it is pushed
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try { Thread.sleep(shortTimeoutInSeconds * 1000 / 2); }
+                catch (InterruptedException e) { return; }
+                queue.push(new Message(testMsg1));
+            }
+        });
+        producer.start();
+        Message msg = queue.pull(longTimeoutInSeconds, TimeUnit.SECONDS);
+        producer.join();
+        Assert.assertTrue(msg != null);
+        queue.delete(msg.getHandle());
+    }
+
+    @Test
+    public void testPullAny() throws InterruptedException {
+        MessageQueue queue = service.getQueue(testQueueId);
+        final MessageQueue other = service.getQueue(testOtherQueueId);
+        queue.setVisibilityTimeout(longTimeoutInSeconds);
+        other.setVisibilityTimeout(longTimeoutInSeconds);
+        List<String> queueIds = Arrays.asList(testQueueId, testOtherQueueId);
+
+        // Nothing to pull, the whole timeout is waited
+        long start = System.nanoTime();
+        Assert.assertTrue(service.pullAny(queueIds, 10, shortTimeoutInSeconds, TimeUnit.SECONDS).isEmpty());
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(shortTimeoutInSeconds));
+
+        // The messages are listed by queue, the queues may not be pulled by the same call
+        queue.push(new Message(testMsg1));
+        other.push(new Message(testMsg2));
+        Map<String, Message> received = new HashMap<>();
+        while (received.size() < 2) {
+            Map<String, List<Message>> pulled = service.pullAny(queueIds, 10, longTimeoutInSeconds, TimeUnit.SECONDS);
+            Assert.assertFalse(pulled.isEmpty());
+            for (Map.Entry<String, List<Message>> entry : pulled.entrySet()) {
+                Assert.assertEquals(1, entry.getValue().size());
+                Assert.assertTrue(received.put(entry.getKey(), entry.getValue().get(0)) == null);
+            }
+        }
+        Assert.assertEquals(testMsg1, received.get(testQueueId).getBody());
+        Assert.assertEquals(testMsg2, received.get(testOtherQueueId).getBody());
+        queue.delete(received.get(testQueueId).getHandle());
+        other.delete(received.get(testOtherQueueId).getHandle());
+
+        // The waiting caller gets the message as soon as it is pushed to one of the queues
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try { Thread.sleep(shortTimeoutInSeconds * 1000 / 2); }
+                catch (InterruptedException e) { return; }
+                other.push(new Message(testMsg2));
+            }
+        });
+        producer.start();
+        Map<String, List<Message>> pulled = service.pullAny(queueIds, 10, longTimeoutInSeconds, TimeUnit.SECONDS);
+        producer.join();
+        Assert.assertEquals(1, pulled.size());
+        Message msg = pulled.get(testOtherQueueId).get(0);
+        Assert.assertEquals(testMsg2, msg.getBody());
+        other.delete(msg.getHandle());
+        Assert.assertTrue(service.pullAny(queueIds, 10, 0, TimeUnit.SECONDS).isEmpty());
+        service.deleteQueue(testOtherQueueId);
+    }
+
+    @Test
+    public void testAsyncSendAndReceive() {
+        MessageQueue queue = service.getQueue(testQueueId);
+        queue.setVisibilityTimeout(longTimeoutInSeconds);
+
+        queue.pushAsync(new Message(testMsg1)).join();
+        Message msg = queue.pullAsync(longTimeoutInSeconds, TimeUnit.SECONDS).join();
+        Assert.assertTrue(msg != null);
+        Assert.assertEquals(testMsg1, msg.getBody());
+        queue.deleteAsync(msg.getHandle()).join();
+        Assert.assertTrue(queue.pull() == null);
+    }
+
+    @Test
+    public void testAsyncWaitingPull() {
+        MessageQueue queue = service.getQueue(testQueueId);
+        queue.setVisibilityTimeout(longTimeoutInSeconds);
+
+        // Nothing to pull, the future completes with null once the timeout expires
+        long start = System.nanoTime();
+        Assert.assertTrue(queue.pullAsync(shortTimeoutInSeconds, TimeUnit.SECONDS).join() == null);
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(shortTimeoutInSeconds));
+
+        // The pulls waiting without a thread each get one of the messages pushed afterwards
+        int count = 50;
+        List<CompletableFuture<Message>> pulls = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i)
+            pulls.add(queue.pullAsync(longTimeoutInSeconds, TimeUnit.SECONDS));
+        List<CompletableFuture<Void>> pushes = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i)
+            pushes.add(queue.pushAsync(new Message(testMsg1)));
+        for (CompletableFuture<Void> push : pushes)
+            push.join();
+        List<CompletableFuture<Void>> deletes = new ArrayList<>(count);
+        for (CompletableFuture<Message> pull : pulls) {
+            Message msg = pull.join();
+            Assert.assertTrue(msg != null);
+            deletes.add(queue.deleteAsync(msg.getHandle()));
+        }
+        for (CompletableFuture<Void> delete : deletes)
+            delete.join();
+        Assert.assertTrue(queue.pull() == null);
+    }
+
+    @Test
+    public void testSubscription() throws InterruptedException {
+        MessageQueue queue = service.getQueue(testQueueId);
+        queue.setVisibilityTimeout(shortTimeoutInSeconds);
+
+        final int count = 20;
+        final CountDownLatch handled = new CountDownLatch(count);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        Subscription subscription = service.subscribe(testQueueId, new MessageHandler() {
+            @Override
+            public void handle(Message message) {
+                // The first delivery of the first message fails, it is handled again once visible
+                if (message.getBody().equals(testMsg2) && failed.compareAndSet(false, true))
+                    throw new IllegalStateException("Handler failure");
+                handled.countDown();
+            }
+        }, 4, 8);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        subscription.setErrorHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable e) {
+                error.set(e);
+            }
+        });
+        queue.push(new Message(testMsg2));
+        for (int i = 1; i < count; ++i)
+            queue.push(new Message(testMsg1));
+
+        Assert.assertTrue(handled.await(longTimeoutInSeconds, TimeUnit.SECONDS));
+        subscription.close();
+        Assert.assertEquals(1, subscription.getFailureCount());
+        Assert.assertEquals("Handler failure", error.get().getMessage());
+        Assert.assertTrue(queue.pull() == null);
+    }
+
+    @Test
+    public void testMetrics() {
+        MessageQueue queue = service.getQueue(testQueueId);
+        queue.setVisibilityTimeout(longTimeoutInSeconds);
+        QueueMetrics metrics = queue.getMetrics();
+        long pushCount = metrics.getPushCount();
+        long pullCount = metrics.getPullCount();
+        long deleteCount = metrics.getDeleteCount();
+
+        queue.push(new Message(testMsg1));
+        Message msg = queue.pull();
+        Assert.assertTrue(msg != null);
+        queue.delete(msg.getHandle());
+
+        Assert.assertEquals(pushCount + 1, metrics.getPushCount());
+        Assert.assertEquals(pullCount + 1, metrics.getPullCount());
+        Assert.assertEquals(deleteCount + 1, metrics.getDeleteCount());
+        Assert.assertTrue(metrics.getPushToPullLatency().getCount() >= 1);
+        Assert.assertTrue(service.getMetrics().getPushCount() >= metrics.getPushCount());
+    }
+
     @Test
     public void testConcurrentAccess() throws InterruptedException {
         MessageQueue queue = service.getQueue(testQueueId);
@@ -0,0 +1,74 @@
+package namespace;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import namespace.model.Message;
+import namespace.model.RingBufferQueue;
+import namespace.model.VisibilityScheduler;
+import namespace.model.WaitStrategy;
+import namespace.service.RingBufferQueueService;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class RingBufferQueueTest extends QueueTest {
+    private static final int smallCapacity = 4;
+
+    @BeforeClass
+    public static void testInit() {
+        // Small enough for the producers to wait for room
+        service = new RingBufferQueueService(16, WaitStrategy.PARK);
+    }
+
+    @Override
+    protected boolean supportsMessageGroups() {
+        return false;
+    }
+
+    @Override
+    protected boolean supportsDeduplication() {
+        return false;
+    }
+
+    // Fills a small ring, which frees its slots on pull, and checks how the producers wait for room
+    @Test
+    public void testFullRing() throws InterruptedException {
+        VisibilityScheduler scheduler = new VisibilityScheduler();
+        final RingBufferQueue queue = new RingBufferQueue(scheduler, smallCapacity, WaitStrategy.PARK);
+        try {
+            for (int i = 0; i < smallCapacity; ++i)
+                Assert.assertTrue(queue.offer(new Message("Message " + i)));
+            Assert.assertFalse(queue.offer(new Message("No room")));
+
+            long start = System.nanoTime();
+            Assert.assertFalse(queue.offer(new Message("No room"), 200, TimeUnit.MILLISECONDS));
+            Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+
+            final CountDownLatch pushed = new CountDownLatch(1);
+            Thread producer = new Thread() {
+                @Override
+                public void run() {
+                    queue.push(new Message("Last"));
+                    pushed.countDown();
+                }
+            };
+            producer.start();
+            Assert.assertFalse(pushed.await(200, TimeUnit.MILLISECONDS));
+            Message first = queue.pull();
+            Assert.assertEquals("Message 0", first.getBody());
+            Assert.assertTrue(pushed.await(10, TimeUnit.SECONDS));
+            producer.join();
+            queue.delete(first.getHandle());
+
+            for (int i = 1; i < smallCapacity; ++i)
+                queue.delete(queue.pull().getHandle());
+            Assert.assertEquals("Last", queue.pull().getBody());
+            Assert.assertNull(queue.pull());
+        }
+        finally {
+            queue.close();
+            scheduler.shutdown();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package namespace;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import namespace.model.SegmentedLog;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentedLogTest {
+    private static final Executor inline = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+    private File dir;
+    private SegmentedLog log;
+
+    @Before
+    public void open() throws IOException {
+        dir = Files.createTempDirectory("segmented-log-").toFile();
+        log = new SegmentedLog(dir, SegmentedLog.defaultSegmentSize, inline);
+    }
+
+    @After
+    public void delete() {
+        log.delete();
+    }
+
+    private static List<ByteBuffer[]> records(String... bodies) {
+        List<ByteBuffer[]> records = new ArrayList<>();
+        for (String body : bodies)
+            records.add(new ByteBuffer[] { ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8)) });
+        return records;
+    }
+
+    private static List<String> bodies(List<SegmentedLog.Record> records) {
+        List<String> bodies = new ArrayList<>();
+        for (SegmentedLog.Record record : records)
+            bodies.add(new String(record.getData(), StandardCharsets.UTF_8));
+        return bodies;
+    }
+
+    private File segment() {
+        return dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".log");
+            }
+        })[0];
+    }
+
+    // The log is reopened as by another process after the crash, which truncates the torn tail on its first append
+    private void reopen() throws IOException {
+        log.close();
+        log = new SegmentedLog(dir, SegmentedLog.defaultSegmentSize, inline);
+    }
+
+    @Test
+    public void testTruncatedRecord() throws IOException {
+        log.append(records("first", "second", "third"));
+        long length = segment().length();
+        try (RandomAccessFile file = new RandomAccessFile(segment(), "rw")) {
+            file.setLength(length - 2);
+        }
+        reopen();
+        Assert.assertEquals(2, log.read(10).size());
+        log.append(records("fourth"));
+        Assert.assertEquals(length - 8 - "third".length() + 8 + "fourth".length(), segment().length());
+        List<SegmentedLog.Record> read = log.read(10);
+        Assert.assertEquals(3, read.size());
+        Assert.assertEquals("fourth", bodies(read).get(2));
+    }
+
+    @Test
+    public void testCorruptedRecord() throws IOException {
+        log.append(records("first", "second", "third"));
+        long length = segment().length();
+        try (RandomAccessFile file = new RandomAccessFile(segment(), "rw")) {
+            file.seek(length - 1);
+            file.write('x');
+        }
+        reopen();
+        List<SegmentedLog.Record> read = log.read(10);
+        Assert.assertEquals(2, read.size());
+        SegmentedLog.Record last = read.get(1);
+        Assert.assertNull(log.readAt(last.getSegment(), last.getPosition() + 8 + "second".length()));
+        log.append(records("fourth"));
+        Assert.assertEquals("fourth", bodies(log.read(10)).get(2));
+    }
+
+    // A tail of zeros, as left by a crash of the OS, does not make empty records
+    @Test
+    public void testZeroTail() throws IOException {
+        log.append(records("first"));
+        long length = segment().length();
+        try (RandomAccessFile file = new RandomAccessFile(segment(), "rw")) {
+            file.setLength(length + 64);
+        }
+        reopen();
+        Assert.assertEquals(1, log.read(10).size());
+        log.append(records("second"));
+        Assert.assertEquals(length + 8 + "second".length(), segment().length());
+        List<SegmentedLog.Record> read = log.read(10);
+        Assert.assertEquals(2, read.size());
+        Assert.assertEquals("second", bodies(read).get(1));
+    }
+}
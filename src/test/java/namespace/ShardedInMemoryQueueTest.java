@@ -0,0 +1,12 @@
+package namespace;
+
+import namespace.service.InMemoryQueueService;
+import org.junit.BeforeClass;
+
+public class ShardedInMemoryQueueTest extends QueueTest {
+
+    @BeforeClass
+    public static void testInit() {
+        service = new InMemoryQueueService(4);
+    }
+}
@@ -0,0 +1,23 @@
+package namespace;
+
+import namespace.model.WaitStrategy;
+import namespace.service.SharedMemoryQueueService;
+import org.junit.BeforeClass;
+
+public class SharedMemoryQueueTest extends QueueTest {
+
+    @BeforeClass
+    public static void testInit() {
+        service = new SharedMemoryQueueService("./shm-", 1024, 512, WaitStrategy.PARK);
+    }
+
+    @Override
+    protected boolean supportsMessageGroups() {
+        return false;
+    }
+
+    @Override
+    protected boolean supportsDeduplication() {
+        return false;
+    }
+}
@@ -1,26 +1,60 @@
 package namespace;
 
-import com.amazonaws.AmazonClientException;
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
-import com.amazonaws.services.sqs.AmazonSQSClient;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.sqs.AmazonSQSAsyncClient;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import namespace.model.Message;
+import namespace.service.LocalSqsServer;
 import namespace.service.SqsQueueService;
+import org.junit.AfterClass;
+import org.junit.Assert;
 import org.junit.BeforeClass;
+import org.junit.Test;
 
 public class SqsQueueTest extends QueueTest {
+    private static LocalSqsServer server;
+    private static AmazonSQSAsyncClient sqs;
 
     @BeforeClass
     public static void testInit() {
-        AWSCredentials credentials = null;
+        // Runs against the embedded stand-in, so that no credentials nor network are needed
+        server = new LocalSqsServer(0);
+        // Each waiting async pull holds a connection and a thread of the client
+        sqs = new AmazonSQSAsyncClient(new BasicAWSCredentials("test", "test"),
+                new ClientConfiguration().withMaxConnections(200), Executors.newFixedThreadPool(200));
+        sqs.setEndpoint(server.getEndpoint());
+        service = new SqsQueueService(sqs);
+    }
+
+    @AfterClass
+    public static void testTeardown() {
+        service.shutdown();
+        server.shutdown();
+    }
+
+    // SQS rejects delays of more than 15 minutes, and so do the queue and the embedded server
+    @Test
+    public void testDelayLimit() {
+        String queueId = "testDelayQueue";
+        try {
+            service.getQueue(queueId).push(new Message("Delayed too long"), 901, TimeUnit.SECONDS);
+            Assert.fail("A delay of more than 900 seconds was accepted");
+        }
+        catch (IllegalArgumentException e) {}
+        String queueUrl = sqs.getQueueUrl(queueId).getQueueUrl();
         try {
-            credentials = new ProfileCredentialsProvider().getCredentials();
+            sqs.sendMessage(new SendMessageRequest(queueUrl, "Delayed too long").withDelaySeconds(901));
+            Assert.fail("The server accepted a delay of more than 900 seconds");
         }
-        catch (Exception e) {
-            throw new AmazonClientException(
-                "Cannot load the credentials from the credential profiles file. "
-                + "Please make sure that your credentials file is at the correct "
-                + "location (~/.aws/credentials), and is in valid format.", e);
+        catch (AmazonServiceException e) {
+            Assert.assertEquals("InvalidParameterValue", e.getErrorCode());
         }
-        service = new SqsQueueService(new AmazonSQSClient(credentials));
+        sqs.sendMessage(new SendMessageRequest(queueUrl, "Delayed enough").withDelaySeconds(900));
+        service.deleteQueue(queueId);
     }
 }
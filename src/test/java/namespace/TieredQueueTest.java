@@ -0,0 +1,80 @@
+package namespace;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import namespace.model.TieredQueue;
+import namespace.model.VisibilityScheduler;
+import namespace.service.TieredQueueService;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TieredQueueTest extends QueueTest {
+
+    @BeforeClass
+    public static void testInit() {
+        // Small enough for the tests to spill to disk
+        service = new TieredQueueService("./tiered-", 1024);
+    }
+
+    @Override
+    protected boolean supportsMessageGroups() {
+        return false;
+    }
+
+    @Override
+    protected boolean supportsDeduplication() {
+        return false;
+    }
+
+    // The log left by a queue that was not closed is deleted, and a new queue starts empty
+    @Test
+    public void testSpillDirLeftover() throws IOException {
+        File dir = Files.createTempDirectory("tiered-").toFile();
+        File segment = new File(dir, String.format("%020d.log", 0));
+        File offset = new File(dir, "offset");
+        Assert.assertTrue(segment.createNewFile());
+        Assert.assertTrue(offset.createNewFile());
+        VisibilityScheduler scheduler = new VisibilityScheduler();
+        ExecutorService background = Executors.newSingleThreadExecutor();
+        TieredQueue queue = new TieredQueue(dir, 1024, scheduler, background);
+        try {
+            Assert.assertFalse(segment.exists());
+            Assert.assertNull(queue.pull());
+        }
+        finally {
+            queue.close();
+            scheduler.shutdown();
+            background.shutdown();
+        }
+        Assert.assertFalse(dir.exists());
+    }
+
+    // The files found in the spill directory belong to something else, and are left alone
+    @Test
+    public void testSpillDirNotEmpty() throws IOException {
+        File dir = Files.createTempDirectory("tiered-").toFile();
+        File other = new File(dir, "other");
+        Assert.assertTrue(other.createNewFile());
+        Assert.assertTrue(new File(dir, "offset").createNewFile());
+        VisibilityScheduler scheduler = new VisibilityScheduler();
+        try {
+            new TieredQueue(dir, 1024, scheduler, null);
+            Assert.fail("A non empty spill directory was accepted");
+        }
+        catch (IllegalArgumentException e) {
+            Assert.assertTrue(other.exists());
+            Assert.assertTrue(new File(dir, "offset").exists());
+        }
+        finally {
+            scheduler.shutdown();
+            other.delete();
+            new File(dir, "offset").delete();
+            dir.delete();
+        }
+    }
+}